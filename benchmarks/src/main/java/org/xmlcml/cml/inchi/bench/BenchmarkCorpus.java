@@ -0,0 +1,189 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * <p>
+ * Size-graded molecules for the benchmarks. They are built in code, so that
+ * the benchmark jar needs no data files, and coordinates come from a fixed
+ * seed, so that every run sees the same molecules.
+ *
+ * <p>
+ * Structures are given as a list of element symbols, each followed by one
+ * + or - per unit of charge, and a list of bonds such as
+ * <code>0-1 1=2 2#3</code> between atom numbers.
+ */
+public final class BenchmarkCorpus {
+
+    /**
+     * Kinds of molecule, roughly in order of size.
+     */
+    public enum Grade {
+        /** small drugs, no coordinates, implicit hydrogens */
+        DRUG,
+        /** the same drugs as 3D conformers with explicit hydrogens */
+        CONFORMER,
+        /** macrolide-like rings with sugars, 44 to 155 atoms, 3D */
+        NATURAL_PRODUCT,
+        /** drug salts: two or more charged components */
+        SALT
+    }
+
+    private static final long SEED = 20111014L;
+
+    private static final String[][] DRUGS = {
+        // aspirin
+        { "C C C C C C C O O O C O C",
+            "0=1 1-2 2=3 3-4 4=5 5-0 0-6 6=7 6-8 1-9 9-10 10=11 10-12" },
+        // caffeine
+        { "N C N C C C N C N O O C C C",
+            "0-1 1-2 2-3 3=4 4-5 5-0 4-6 6-7 7=8 8-3 1=9 5=10 0-11 2-12 6-13" },
+        // ibuprofen
+        { "C C C C C C C C C C C C C O O",
+            "0=1 1-2 2=3 3-4 4=5 5-0 0-6 6-7 7-8 7-9 3-10 10-11 10-12 12=13 12-14" },
+        // paracetamol
+        { "C C C C C C O N C O C",
+            "0=1 1-2 2=3 3-4 4=5 5-0 0-6 3-7 7-8 8=9 8-10" },
+    };
+
+    private static final String[][] SALTS = {
+        // sodium acetylsalicylate
+        { "C C C C C C C O O- O C O C Na+",
+            "0=1 1-2 2=3 3-4 4=5 5-0 0-6 6=7 6-8 1-9 9-10 10=11 10-12" },
+        // ibuprofen sodium
+        { "C C C C C C C C C C C C C O O- Na+",
+            "0=1 1-2 2=3 3-4 4=5 5-0 0-6 6-7 7-8 7-9 3-10 10-11 10-12 12=13 12-14" },
+        // caffeine hydrochloride
+        { "N C N C C C N C N+ O O C C C Cl-",
+            "0-1 1-2 2-3 3=4 4-5 5-0 4-6 6-7 7=8 8-3 1=9 5=10 0-11 2-12 6-13" },
+        // calcium diacetate
+        { "C C O O- C C O O- Ca++", "0-1 1=2 1-3 4-5 5=6 5-7" },
+    };
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * @param grade
+     * @return new molecules of that grade
+     */
+    public static List<CMLMolecule> build(Grade grade) {
+        Random random = new Random(SEED);
+        List<CMLMolecule> molecules = new ArrayList<CMLMolecule>();
+        if (grade == Grade.DRUG) {
+            for (String[] drug : DRUGS) {
+                molecules.add(parse(drug[0], drug[1]).molecule);
+            }
+        } else if (grade == Grade.CONFORMER) {
+            for (String[] drug : DRUGS) {
+                MoleculeBuilder builder = parse(drug[0], drug[1]);
+                builder.addHydrogens();
+                builder.coordinates(3, random);
+                molecules.add(builder.molecule);
+            }
+        } else if (grade == Grade.NATURAL_PRODUCT) {
+            molecules.add(macrolide(14, 2, random));
+            molecules.add(macrolide(24, 4, random));
+            molecules.add(macrolide(40, 8, random));
+        } else {
+            for (String[] salt : SALTS) {
+                molecules.add(parse(salt[0], salt[1]).molecule);
+            }
+        }
+        return molecules;
+    }
+
+    /**
+     * A lactone ring with methyl and hydroxyl groups round it and sugar
+     * rings hung off it.
+     */
+    private static CMLMolecule macrolide(int ringSize, int sugars, Random random) {
+        MoleculeBuilder b = new MoleculeBuilder();
+        int[] ring = new int[ringSize];
+        ring[0] = b.atom("O", 0);
+        for (int i = 1; i < ringSize; i++) {
+            ring[i] = b.atom("C", 0);
+            b.bond(ring[i - 1], ring[i], 1);
+        }
+        b.bond(ring[ringSize - 1], ring[0], 1);
+        b.bond(ring[1], b.atom("O", 0), 2);
+        int sugar = 0;
+        for (int i = 3; i < ringSize - 1; i += 2) {
+            if (sugar < sugars && i % 4 == 3) {
+                int link = b.atom("O", 0);
+                b.bond(ring[i], link, 1);
+                b.bond(link, pyranose(b), 1);
+                sugar++;
+            } else {
+                b.bond(ring[i], b.atom(i % 4 == 1 ? "O" : "C", 0), 1);
+            }
+        }
+        b.coordinates(3, random);
+        return b.molecule;
+    }
+
+    /**
+     * @return anomeric carbon of a new hexopyranose
+     */
+    private static int pyranose(MoleculeBuilder b) {
+        int o = b.atom("O", 0);
+        int first = b.atom("C", 0);
+        b.bond(o, first, 1);
+        int previous = first;
+        for (int i = 0; i < 4; i++) {
+            int c = b.atom("C", 0);
+            b.bond(previous, c, 1);
+            b.bond(c, b.atom("O", 0), 1);
+            previous = c;
+        }
+        b.bond(previous, o, 1);
+        int c6 = b.atom("C", 0);
+        b.bond(previous, c6, 1);
+        b.bond(c6, b.atom("O", 0), 1);
+        return first;
+    }
+
+    private static MoleculeBuilder parse(String atoms, String bonds) {
+        MoleculeBuilder b = new MoleculeBuilder();
+        for (String symbol : atoms.trim().split("\\s+")) {
+            int end = symbol.length();
+            int charge = 0;
+            while (symbol.charAt(end - 1) == '+' || symbol.charAt(end - 1) == '-') {
+                charge += symbol.charAt(end - 1) == '+' ? 1 : -1;
+                end--;
+            }
+            b.atom(symbol.substring(0, end), charge);
+        }
+        for (String bond : bonds.trim().split("\\s+")) {
+            int op = 1;
+            while (Character.isDigit(bond.charAt(op))) {
+                op++;
+            }
+            char c = bond.charAt(op);
+            int order = c == '=' ? 2 : c == '#' ? 3 : 1;
+            b.bond(Integer.parseInt(bond.substring(0, op)), Integer.parseInt(bond.substring(op + 1)), order);
+        }
+        return b;
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.inchi.InChIGenerator;
+import org.xmlcml.cml.inchi.InChIGeneratorFactory;
+
+/**
+ * <p>
+ * CMLMolecule to InChI: {@link InChIGenerator#generate()} over each grade of
+ * {@link BenchmarkCorpus}, one molecule after another.
+ *
+ * <p>
+ * The threaded variants show how far calls queue on the native library's
+ * lock; with <code>-p workers=4</code> the same calls go to worker
+ * processes instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenerateBenchmark {
+
+    @Param({ "DRUG", "CONFORMER", "NATURAL_PRODUCT", "SALT" })
+    public BenchmarkCorpus.Grade grade;
+
+    /** worker processes, 0 to call the library in the benchmark JVM */
+    @Param({ "0" })
+    public int workers;
+
+    private InChIGeneratorFactory factory;
+
+    private CMLMolecule[] molecules;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        factory = new InChIGeneratorFactory();
+        if (workers > 0) {
+            factory.startWorkers(workers);
+        }
+        List<CMLMolecule> corpus = BenchmarkCorpus.build(grade);
+        molecules = corpus.toArray(new CMLMolecule[corpus.size()]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        factory.stopWorkers();
+    }
+
+    /**
+     * Each thread's place in the corpus.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        CMLMolecule next(CMLMolecule[] molecules) {
+            CMLMolecule molecule = molecules[next];
+            next = (next + 1) % molecules.length;
+            return molecule;
+        }
+
+    }
+
+    @Benchmark
+    public String generate(Cursor cursor) {
+        return generate(cursor.next(molecules));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String generate4Threads(Cursor cursor) {
+        return generate(cursor.next(molecules));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String generateMaxThreads(Cursor cursor) {
+        return generate(cursor.next(molecules));
+    }
+
+    private String generate(CMLMolecule molecule) {
+        InChIGenerator gen = factory.getInChIGenerator(molecule);
+        gen.generate();
+        return gen.getInchi();
+    }
+
+}
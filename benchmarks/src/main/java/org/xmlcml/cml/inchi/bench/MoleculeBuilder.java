@@ -0,0 +1,256 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.xmlcml.cml.element.CMLAtom;
+import org.xmlcml.cml.element.CMLAtomParity;
+import org.xmlcml.cml.element.CMLBond;
+import org.xmlcml.cml.element.CMLBondStereo;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.euclid.Point3;
+import org.xmlcml.euclid.Real2;
+
+/**
+ * Builds a CMLMolecule atom by atom, keeping the connection table and the
+ * valence used by each atom so that hydrogens, stereo and coordinates can be
+ * added afterwards.
+ */
+final class MoleculeBuilder {
+
+    final CMLMolecule molecule = new CMLMolecule();
+
+    private final List<CMLAtom> atoms = new ArrayList<CMLAtom>();
+
+    private final List<List<Integer>> neighbours = new ArrayList<List<Integer>>();
+
+    private final List<int[]> bonds = new ArrayList<int[]>();
+
+    private final List<CMLBond> cmlBonds = new ArrayList<CMLBond>();
+
+    private int[] used = new int[16];
+
+    private int hydrogens;
+
+    private int heavyAtoms;
+
+    private int hydrogenAtoms;
+
+    /**
+     * @return index of the new atom
+     */
+    int atom(String element, int charge) {
+        int index = atoms.size();
+        CMLAtom atom = new CMLAtom("a" + (index + 1));
+        atom.setElementType(element);
+        if (charge != 0) {
+            atom.setFormalCharge(charge);
+        }
+        molecule.addAtom(atom);
+        atoms.add(atom);
+        neighbours.add(new ArrayList<Integer>(4));
+        if (index == used.length) {
+            int[] grown = new int[2 * index];
+            System.arraycopy(used, 0, grown, 0, index);
+            used = grown;
+        }
+        if ("H".equals(element)) {
+            hydrogenAtoms++;
+        } else {
+            heavyAtoms++;
+            hydrogens += freeValence(index);
+        }
+        return index;
+    }
+
+    void bond(int a, int b, int order) {
+        CMLBond bond = new CMLBond(atoms.get(a), atoms.get(b));
+        bond.setOrder(order == 2 ? CMLBond.DOUBLE_D : order == 3 ? CMLBond.TRIPLE_T : CMLBond.SINGLE_S);
+        molecule.addBond(bond);
+        hydrogens -= Math.min(order, freeValence(a)) + Math.min(order, freeValence(b));
+        used[a] += order;
+        used[b] += order;
+        neighbours.get(a).add(b);
+        neighbours.get(b).add(a);
+        bonds.add(new int[] { a, b, order });
+        cmlBonds.add(bond);
+    }
+
+    /**
+     * @return bonds the atom can still make, at its usual valence
+     */
+    int freeValence(int atom) {
+        CMLAtom cml = atoms.get(atom);
+        return Math.max(0, usualValence(cml.getElementType(), cml.getFormalCharge()) - used[atom]);
+    }
+
+    /**
+     * @return atoms so far, including the hydrogens that
+     *         {@link #addHydrogens()} would add, or only heavy atoms
+     */
+    int size(boolean withHydrogens) {
+        return withHydrogens ? heavyAtoms + hydrogenAtoms + hydrogens : heavyAtoms;
+    }
+
+    int atomCount() {
+        return atoms.size();
+    }
+
+    int degree(int atom) {
+        return neighbours.get(atom).size();
+    }
+
+    String element(int atom) {
+        return atoms.get(atom).getElementType();
+    }
+
+    /**
+     * Adds hydrogen atoms to fill the usual valence of C, N and O.
+     */
+    void addHydrogens() {
+        int heavy = atoms.size();
+        for (int i = 0; i < heavy; i++) {
+            int missing = freeValence(i);
+            for (int h = 0; h < missing; h++) {
+                bond(i, atom("H", 0), 1);
+            }
+        }
+    }
+
+    /**
+     * Gives tetrahedral carbons with at most one hydrogen an atom parity,
+     * each with the given probability and a random sign. An implicit
+     * hydrogen is referred to by the central atom itself.
+     */
+    void atomParities(double density, Random random) {
+        for (int i = 0; i < atoms.size(); i++) {
+            if (!"C".equals(element(i)) || used[i] != degree(i)) {
+                continue;
+            }
+            List<Integer> around = neighbours.get(i);
+            int explicitH = 0;
+            for (int n : around) {
+                if ("H".equals(element(n))) {
+                    explicitH++;
+                }
+            }
+            int implicitH = freeValence(i);
+            if (around.size() + implicitH != 4 || explicitH + implicitH > 1 || random.nextDouble() >= density) {
+                continue;
+            }
+            StringBuilder refs = new StringBuilder();
+            for (int n : around) {
+                refs.append(atoms.get(n).getId()).append(' ');
+            }
+            if (implicitH == 1) {
+                refs.append(atoms.get(i).getId());
+            }
+            CMLAtomParity parity = new CMLAtomParity();
+            parity.setAtomRefs4(refs.toString().trim());
+            parity.setXMLContent(random.nextBoolean() ? 1 : -1);
+            atoms.get(i).addAtomParity(parity);
+        }
+    }
+
+    /**
+     * Gives C=C bonds with a neighbour at each end a cis or trans bond
+     * stereo, each with the given probability.
+     */
+    void bondStereos(double density, Random random) {
+        for (int i = 0; i < bonds.size(); i++) {
+            int[] bond = bonds.get(i);
+            if (bond[2] != 2 || !"C".equals(element(bond[0])) || !"C".equals(element(bond[1]))) {
+                continue;
+            }
+            int n0 = otherNeighbour(bond[0], bond[1]);
+            int n1 = otherNeighbour(bond[1], bond[0]);
+            if (n0 < 0 || n1 < 0 || random.nextDouble() >= density) {
+                continue;
+            }
+            CMLBondStereo stereo = new CMLBondStereo();
+            stereo.setAtomRefs4(atoms.get(n0).getId() + " " + atoms.get(bond[0]).getId() + " "
+                    + atoms.get(bond[1]).getId() + " " + atoms.get(n1).getId());
+            stereo.setXMLContent(random.nextBoolean() ? CMLBond.CIS : CMLBond.TRANS);
+            cmlBonds.get(i).addBondStereo(stereo);
+        }
+    }
+
+    private int otherNeighbour(int atom, int partner) {
+        for (int n : neighbours.get(atom)) {
+            if (n != partner) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Places each atom about a bond length from an atom it is bonded to, in
+     * a random direction. Atoms in other components start at random points.
+     *
+     * @param dimensions    2 or 3
+     */
+    void coordinates(int dimensions, Random random) {
+        double[][] xyz = new double[atoms.size()][];
+        for (int start = 0; start < xyz.length; start++) {
+            if (xyz[start] != null) {
+                continue;
+            }
+            double spread = 2 * Math.sqrt(atoms.size());
+            xyz[start] = new double[] { spread * random.nextDouble(), spread * random.nextDouble(),
+                    dimensions == 3 ? spread * random.nextDouble() : 0 };
+            List<Integer> queue = new ArrayList<Integer>();
+            queue.add(start);
+            for (int q = 0; q < queue.size(); q++) {
+                int from = queue.get(q);
+                for (int to : neighbours.get(from)) {
+                    if (xyz[to] != null) {
+                        continue;
+                    }
+                    double x = random.nextGaussian(), y = random.nextGaussian();
+                    double z = dimensions == 3 ? random.nextGaussian() : 0;
+                    double scale = 1.5 / Math.sqrt(x * x + y * y + z * z);
+                    xyz[to] = new double[] { xyz[from][0] + x * scale, xyz[from][1] + y * scale,
+                            xyz[from][2] + z * scale };
+                    queue.add(to);
+                }
+            }
+        }
+        for (int i = 0; i < xyz.length; i++) {
+            if (dimensions == 3) {
+                atoms.get(i).setXYZ3(new Point3(xyz[i][0], xyz[i][1], xyz[i][2]));
+            } else {
+                atoms.get(i).setXY2(new Real2(xyz[i][0], xyz[i][1]));
+            }
+        }
+    }
+
+    private static int usualValence(String element, int charge) {
+        if ("C".equals(element)) {
+            return 4;
+        } else if ("N".equals(element)) {
+            return 3 + charge;
+        } else if ("O".equals(element)) {
+            return 2 + charge;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,92 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.inchi.InChIGenerator;
+import org.xmlcml.cml.inchi.InChIGeneratorFactory;
+
+/**
+ * CMLMolecule to InChI over {@link SyntheticMolecules}, sweeping shape,
+ * size and stereo density to show how generation scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScalingBenchmark {
+
+    private static final int MOLECULES = 16;
+
+    @Param({ "CHAIN", "FUSED_RINGS", "DENDRIMER", "SALT", "MIXTURE" })
+    public SyntheticMolecules.Shape shape;
+
+    @Param({ "16", "64", "256", "1024" })
+    public int atoms;
+
+    @Param({ "0", "0.5" })
+    public double stereoDensity;
+
+    @Param({ "NONE" })
+    public SyntheticMolecules.Coordinates coordinates;
+
+    @Param({ "false" })
+    public boolean explicitHydrogens;
+
+    private InChIGeneratorFactory factory;
+
+    private CMLMolecule[] molecules;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        factory = new InChIGeneratorFactory();
+        SyntheticMolecules generator = new SyntheticMolecules(atoms);
+        generator.setStereoDensity(stereoDensity);
+        generator.setCoordinates(coordinates);
+        generator.setExplicitHydrogens(explicitHydrogens);
+        List<CMLMolecule> generated = generator.generate(shape, atoms, MOLECULES);
+        molecules = generated.toArray(new CMLMolecule[MOLECULES]);
+    }
+
+    @Benchmark
+    public String generate() {
+        InChIGenerator gen = factory.getInChIGenerator(molecules[next]);
+        next = (next + 1) % MOLECULES;
+        gen.generate();
+        return gen.getInchi();
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.inchi.InChIGeneratorFactory;
+
+/**
+ * <p>
+ * InChI to CMLMolecule through
+ * {@link InChIGeneratorFactory#getInChIToStructure(String)}, over the InChIs
+ * of each grade of {@link BenchmarkCorpus}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructureBenchmark {
+
+    @Param({ "DRUG", "CONFORMER", "NATURAL_PRODUCT", "SALT" })
+    public BenchmarkCorpus.Grade grade;
+
+    /** worker processes, 0 to call the library in the benchmark JVM */
+    @Param({ "0" })
+    public int workers;
+
+    private InChIGeneratorFactory factory;
+
+    private String[] inchis;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        factory = new InChIGeneratorFactory();
+        List<CMLMolecule> corpus = BenchmarkCorpus.build(grade);
+        inchis = new String[corpus.size()];
+        for (int i = 0; i < inchis.length; i++) {
+            inchis[i] = factory.getInChIGenerator(corpus.get(i)).getInchi();
+        }
+        if (workers > 0) {
+            factory.startWorkers(workers);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        factory.stopWorkers();
+    }
+
+    /**
+     * Each thread's place in the corpus.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        String next(String[] inchis) {
+            String inchi = inchis[next];
+            next = (next + 1) % inchis.length;
+            return inchi;
+        }
+
+    }
+
+    @Benchmark
+    public CMLMolecule decode(Cursor cursor) {
+        return factory.getInChIToStructure(cursor.next(inchis)).getMolecule();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public CMLMolecule decode4Threads(Cursor cursor) {
+        return factory.getInChIToStructure(cursor.next(inchis)).getMolecule();
+    }
+
+}
@@ -0,0 +1,348 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * <p>
+ * Generates molecules of a chosen shape and size from a seed, for sweeping
+ * size and stereo density in benchmarks and load tests. The same seed and
+ * settings always give the same sequence of molecules.
+ *
+ * <p>
+ * The structures are chemically plausible (usual valences, C, N and O with
+ * Na+ and K+ counter-ions) but not real compounds. Stereo is given as
+ * CMLAtomParity and CMLBondStereo elements with random senses.
+ */
+public final class SyntheticMolecules {
+
+    /**
+     * Shapes of molecule.
+     */
+    public enum Shape {
+        /** branched chains with some heteroatoms and double bonds */
+        CHAIN,
+        /** saturated six-membered rings fused in random directions */
+        FUSED_RINGS,
+        /** amidoamine dendrimer grown from a nitrogen core */
+        DENDRIMER,
+        /** chain carrying carboxylate groups, with Na+ and K+ ions */
+        SALT,
+        /** two to five unconnected molecules of the other shapes */
+        MIXTURE
+    }
+
+    /**
+     * Coordinates given to the atoms.
+     */
+    public enum Coordinates {
+        /** none */
+        NONE,
+        /** x2, y2 */
+        TWO_D,
+        /** x3, y3, z3 */
+        THREE_D
+    }
+
+    /**
+     * Most atoms InChI accepts in one structure.
+     */
+    public static final int MAX_ATOMS = 1024;
+
+    private static final Shape[] COMPONENT_SHAPES = { Shape.CHAIN, Shape.FUSED_RINGS, Shape.DENDRIMER };
+
+    private final Random random;
+
+    private Coordinates coordinates = Coordinates.NONE;
+
+    private boolean explicitHydrogens;
+
+    private double stereoDensity;
+
+    /**
+     * @param seed
+     */
+    public SyntheticMolecules(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param coordinates   coordinates for molecules generated afterwards
+     */
+    public void setCoordinates(Coordinates coordinates) {
+        this.coordinates = coordinates;
+    }
+
+    /**
+     * @return coordinates given to the atoms
+     */
+    public Coordinates getCoordinates() {
+        return coordinates;
+    }
+
+    /**
+     * @param explicitHydrogens  true to add hydrogens as atoms, false to
+     *                           leave them implicit
+     */
+    public void setExplicitHydrogens(boolean explicitHydrogens) {
+        this.explicitHydrogens = explicitHydrogens;
+    }
+
+    /**
+     * @return true if hydrogens are added as atoms
+     */
+    public boolean isExplicitHydrogens() {
+        return explicitHydrogens;
+    }
+
+    /**
+     * @param stereoDensity  chance, 0 to 1, that each possible stereocentre
+     *                       and C=C bond is given a parity or bond stereo
+     */
+    public void setStereoDensity(double stereoDensity) {
+        if (stereoDensity < 0 || stereoDensity > 1) {
+            throw new IllegalArgumentException("Stereo density must be 0 to 1: " + stereoDensity);
+        }
+        this.stereoDensity = stereoDensity;
+    }
+
+    /**
+     * @return chance that each possible stereocentre is given a parity
+     */
+    public double getStereoDensity() {
+        return stereoDensity;
+    }
+
+    /**
+     * @param shape
+     * @param atomCount     atoms wanted, counting explicit hydrogens; the
+     *                      molecule has at most this many, and only a few
+     *                      fewer
+     * @return new molecule
+     * @throws IllegalArgumentException if atomCount is not 1 (5 with
+     *             explicit hydrogens) to {@link #MAX_ATOMS}
+     */
+    public CMLMolecule generate(Shape shape, int atomCount) {
+        int min = explicitHydrogens ? 5 : 1;
+        if (atomCount < min || atomCount > MAX_ATOMS) {
+            throw new IllegalArgumentException("Atom count must be " + min + " to " + MAX_ATOMS + ": " + atomCount);
+        }
+        MoleculeBuilder b = new MoleculeBuilder();
+        grow(b, shape, atomCount);
+        if (explicitHydrogens) {
+            b.addHydrogens();
+        }
+        if (stereoDensity > 0) {
+            b.atomParities(stereoDensity, random);
+            b.bondStereos(stereoDensity, random);
+        }
+        if (coordinates == Coordinates.TWO_D) {
+            b.coordinates(2, random);
+        } else if (coordinates == Coordinates.THREE_D) {
+            b.coordinates(3, random);
+        }
+        return b.molecule;
+    }
+
+    /**
+     * @param shape
+     * @param atomCount     atoms wanted in each molecule
+     * @param count         number of molecules
+     * @return new molecules, as from {@link #generate(Shape, int)}
+     */
+    public List<CMLMolecule> generate(Shape shape, int atomCount, int count) {
+        List<CMLMolecule> molecules = new ArrayList<CMLMolecule>(count);
+        for (int i = 0; i < count; i++) {
+            molecules.add(generate(shape, atomCount));
+        }
+        return molecules;
+    }
+
+    /**
+     * Adds a new component of the given shape until the builder holds about
+     * limit atoms.
+     */
+    private void grow(MoleculeBuilder b, Shape shape, int limit) {
+        if (shape == Shape.CHAIN) {
+            chain(b, limit);
+        } else if (shape == Shape.FUSED_RINGS) {
+            fusedRings(b, limit);
+        } else if (shape == Shape.DENDRIMER) {
+            dendrimer(b, limit);
+        } else if (shape == Shape.SALT) {
+            salt(b, limit);
+        } else {
+            mixture(b, limit);
+        }
+    }
+
+    /**
+     * @return true if heavy atoms can be added without going over the limit,
+     *         assuming each brings at most three hydrogens
+     */
+    private boolean room(MoleculeBuilder b, int limit, int heavy) {
+        return b.size(explicitHydrogens) + heavy * (explicitHydrogens ? 4 : 1) <= limit;
+    }
+
+    private void chain(MoleculeBuilder b, int limit) {
+        int first = b.atomCount();
+        int tip = b.atom("C", 0);
+        while (room(b, limit, 1)) {
+            int from = b.freeValence(tip) > 0 && random.nextDouble() < 0.8 ? tip : pick(b, first, 1);
+            if (from < 0) {
+                break;
+            }
+            double r = random.nextDouble();
+            String element = r < 0.8 ? "C" : r < 0.9 ? "N" : "O";
+            int atom = b.atom(element, 0);
+            int order = "C".equals(element) && "C".equals(b.element(from))
+                    && b.freeValence(from) >= 2 && random.nextDouble() < 0.15 ? 2 : 1;
+            b.bond(from, atom, order);
+            if (from == tip || b.freeValence(tip) == 0) {
+                tip = atom;
+            }
+        }
+    }
+
+    private void fusedRings(MoleculeBuilder b, int limit) {
+        if (!room(b, limit, 6)) {
+            chain(b, limit);
+            return;
+        }
+        int[] ring = new int[6];
+        for (int i = 0; i < 6; i++) {
+            ring[i] = b.atom("C", 0);
+        }
+        List<int[]> fusable = new ArrayList<int[]>();
+        for (int i = 0; i < 6; i++) {
+            b.bond(ring[i], ring[(i + 1) % 6], 1);
+            fusable.add(new int[] { ring[i], ring[(i + 1) % 6] });
+        }
+        while (room(b, limit, 4) && !fusable.isEmpty()) {
+            int[] edge = fusable.remove(random.nextInt(fusable.size()));
+            if (b.degree(edge[0]) != 2 || b.degree(edge[1]) != 2) {
+                continue;
+            }
+            int previous = edge[0];
+            for (int i = 0; i < 4; i++) {
+                int atom = b.atom(i == 2 && random.nextDouble() < 0.2 ? "N" : "C", 0);
+                b.bond(previous, atom, 1);
+                if (i > 0) {
+                    fusable.add(new int[] { previous, atom });
+                }
+                previous = atom;
+            }
+            b.bond(previous, edge[1], 1);
+        }
+        substituents(b, limit, ring[0]);
+    }
+
+    private void dendrimer(MoleculeBuilder b, int limit) {
+        int core = b.atom("N", 0);
+        LinkedList<Integer> frontier = new LinkedList<Integer>();
+        for (int i = 0; i < 3; i++) {
+            frontier.add(core);
+        }
+        // -CH2-CH2-C(=O)-NH-CH2-CH2-N<
+        while (room(b, limit, 8) && !frontier.isEmpty()) {
+            int from = frontier.removeFirst();
+            int c1 = b.atom("C", 0);
+            b.bond(from, c1, 1);
+            int c2 = b.atom("C", 0);
+            b.bond(c1, c2, 1);
+            int carbonyl = b.atom("C", 0);
+            b.bond(c2, carbonyl, 1);
+            b.bond(carbonyl, b.atom("O", 0), 2);
+            int amide = b.atom("N", 0);
+            b.bond(carbonyl, amide, 1);
+            int c3 = b.atom("C", 0);
+            b.bond(amide, c3, 1);
+            int c4 = b.atom("C", 0);
+            b.bond(c3, c4, 1);
+            int branch = b.atom("N", 0);
+            b.bond(c4, branch, 1);
+            frontier.add(branch);
+            frontier.add(branch);
+        }
+        substituents(b, limit, core);
+    }
+
+    private void salt(MoleculeBuilder b, int limit) {
+        int first = b.atomCount();
+        int groups = 1 + limit / 64;
+        // a carboxylate and its ion are four atoms, less a hydrogen where
+        // it is attached
+        chain(b, Math.max(b.size(explicitHydrogens) + 1, limit - 4 * groups));
+        while (groups-- > 0 && b.size(explicitHydrogens) + 4 <= limit) {
+            int from = pick(b, first, 1);
+            if (from < 0) {
+                break;
+            }
+            int carbon = b.atom("C", 0);
+            b.bond(from, carbon, 1);
+            b.bond(carbon, b.atom("O", 0), 2);
+            b.bond(carbon, b.atom("O", -1), 1);
+            b.atom(random.nextBoolean() ? "Na" : "K", 1);
+        }
+    }
+
+    private void mixture(MoleculeBuilder b, int limit) {
+        int components = 2 + random.nextInt(4);
+        // a new component starts with a whole CH4
+        for (int i = components; i > 0 && room(b, limit, 2); i--) {
+            int share = (limit - b.size(explicitHydrogens)) / i;
+            grow(b, COMPONENT_SHAPES[random.nextInt(COMPONENT_SHAPES.length)],
+                    b.size(explicitHydrogens) + Math.max(share, explicitHydrogens ? 4 : 1));
+        }
+    }
+
+    /**
+     * Fills the space left with methyl and hydroxyl groups.
+     */
+    private void substituents(MoleculeBuilder b, int limit, int first) {
+        while (room(b, limit, 1)) {
+            int from = pick(b, first, 1);
+            if (from < 0) {
+                return;
+            }
+            b.bond(from, b.atom(random.nextDouble() < 0.7 ? "C" : "O", 0), 1);
+        }
+    }
+
+    /**
+     * @return a random atom from first on with at least the given free
+     *         valence, or -1 if there is none
+     */
+    private int pick(MoleculeBuilder b, int first, int valence) {
+        int count = b.atomCount() - first;
+        int offset = random.nextInt(count);
+        for (int i = 0; i < count; i++) {
+            int atom = first + (offset + i) % count;
+            if (b.freeValence(atom) >= valence) {
+                return atom;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,58 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Fields common to InChI generation and decoding events. The event's own
+ * duration covers the whole call, from just before the library is asked
+ * for it to the outcome.
+ */
+@Category("InChI")
+@StackTrace(false)
+abstract class InChICallEvent extends Event {
+
+    @Label("Options")
+    String options;
+
+    @Label("Status")
+    String status;
+
+    @Label("Atoms")
+    int atomCount;
+
+    @Label("Bonds")
+    int bondCount;
+
+    @Label("Lock Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long lockWait;
+
+    @Label("Native")
+    @Timespan(Timespan.NANOSECONDS)
+    long nativeTime;
+
+    @Label("Marshal")
+    @Timespan(Timespan.NANOSECONDS)
+    long marshal;
+
+}
@@ -0,0 +1,39 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * InChI decoded to a structure.
+ */
+@Name("org.xmlcml.cml.inchi.Decode")
+@Label("InChI Decode")
+@Description("An InChI decoded to a CMLMolecule")
+final class InChIDecodeEvent extends InChICallEvent {
+
+    @Label("InChI")
+    String inchi;
+
+    @Label("Build")
+    @Timespan(Timespan.NANOSECONDS)
+    long build;
+
+}
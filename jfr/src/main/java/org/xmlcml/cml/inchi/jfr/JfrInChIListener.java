@@ -0,0 +1,162 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi.jfr;
+
+import net.sf.jniinchi.INCHI_RET;
+
+import org.xmlcml.cml.inchi.InChIGeneratorFactory;
+import org.xmlcml.cml.inchi.InChIMetricsListener;
+import org.xmlcml.cml.inchi.Problems;
+
+/**
+ * <p>
+ * Records a Java Flight Recorder event for each InChI generated
+ * (<code>org.xmlcml.cml.inchi.Generation</code>) and decoded
+ * (<code>org.xmlcml.cml.inchi.Decode</code>), with the atom and bond counts,
+ * options, return status or problem, and the time spent waiting for the
+ * library, in it, and marshalling. Slow structures and lock contention can
+ * then be found in a recording. While the events are not being recorded the
+ * cost is a thread-local lookup per call.
+ *
+ * <p>
+ * Set it on a factory with
+ * {@link InChIGeneratorFactory#setMetricsListener(InChIMetricsListener)}. To
+ * keep other metrics as well, pass their listener to the constructor, e.g.
+ * <pre>
+ * factory.setMetricsListener(new JfrInChIListener(factory.enableMetrics("app")));
+ * </pre>
+ */
+public class JfrInChIListener implements InChIMetricsListener {
+
+    private final InChIMetricsListener delegate;
+
+    private final ThreadLocal<InChICallEvent> current = new ThreadLocal<InChICallEvent>();
+
+    public JfrInChIListener() {
+        this(null);
+    }
+
+    /**
+     * @param delegate  listener also told of everything, or null
+     */
+    public JfrInChIListener(InChIMetricsListener delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the listener also told of everything, or null
+     */
+    public InChIMetricsListener getDelegate() {
+        return delegate;
+    }
+
+    public void phaseCompleted(Phase phase, long nanos) {
+        if (delegate != null) {
+            delegate.phaseCompleted(phase, nanos);
+        }
+        InChICallEvent event = current.get();
+        if (event == null) {
+            return;
+        }
+        switch (phase) {
+        case LOCK_WAIT:
+            event.lockWait += nanos;
+            break;
+        case NATIVE:
+            event.nativeTime += nanos;
+            break;
+        case MARSHAL:
+            event.marshal += nanos;
+            break;
+        case BUILD:
+            if (event instanceof InChIDecodeEvent) {
+                ((InChIDecodeEvent) event).build += nanos;
+            }
+            break;
+        default:
+            // extraction may be on another thread, so is not attributed
+        }
+    }
+
+    public void inchiStarted(int atomCount, int bondCount, String options) {
+        if (delegate != null) {
+            delegate.inchiStarted(atomCount, bondCount, options);
+        }
+        InChIGenerationEvent event = new InChIGenerationEvent();
+        if (event.isEnabled()) {
+            event.atomCount = atomCount;
+            event.bondCount = bondCount;
+            event.options = options;
+            event.begin();
+            current.set(event);
+        }
+    }
+
+    public void inchiGenerated(INCHI_RET status) {
+        if (delegate != null) {
+            delegate.inchiGenerated(status);
+        }
+        commit(InChIGenerationEvent.class, status.name());
+    }
+
+    public void inchiProblem(Problems problem) {
+        if (delegate != null) {
+            delegate.inchiProblem(problem);
+        }
+        // only problems met in the library call, such as timeouts, have an event
+        commit(InChIGenerationEvent.class, problem.name());
+    }
+
+    public void structureStarted(String inchi, String options) {
+        if (delegate != null) {
+            delegate.structureStarted(inchi, options);
+        }
+        InChIDecodeEvent event = new InChIDecodeEvent();
+        if (event.isEnabled()) {
+            event.inchi = inchi;
+            event.options = options;
+            event.begin();
+            current.set(event);
+        }
+    }
+
+    public void structureGenerated(INCHI_RET status, int atomCount, int bondCount) {
+        if (delegate != null) {
+            delegate.structureGenerated(status, atomCount, bondCount);
+        }
+        InChICallEvent event = current.get();
+        if (event instanceof InChIDecodeEvent) {
+            event.atomCount = atomCount;
+            event.bondCount = bondCount;
+        }
+        commit(InChIDecodeEvent.class, status.name());
+    }
+
+    private void commit(Class<? extends InChICallEvent> type, String status) {
+        InChICallEvent event = current.get();
+        if (event == null || event.getClass() != type) {
+            return;
+        }
+        current.remove();
+        event.end();
+        if (event.shouldCommit()) {
+            event.status = status;
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+/**
+ * Atom id to atom index table, open addressing over two arrays, so that
+ * atom references in bonds and stereo elements can be resolved without
+ * going back to the molecule or allocating an entry per atom.
+ */
+final class AtomIndex {
+
+    private final String[] ids;
+
+    private final int[] indices;
+
+    private final int mask;
+
+    /**
+     * @param atomCount number of atoms to be added
+     */
+    AtomIndex(int atomCount) {
+        int size = 2;
+        while (size < 2 * atomCount) {
+            size <<= 1;
+        }
+        ids = new String[size];
+        indices = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an atom; an atom without an id, or with the id of one already
+     * added, is ignored.
+     */
+    void put(String id, int index) {
+        if (id == null) {
+            return;
+        }
+        int slot = spread(id.hashCode()) & mask;
+        while (ids[slot] != null) {
+            if (ids[slot].equals(id)) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        ids[slot] = id;
+        indices[slot] = index;
+    }
+
+    /**
+     * @return index of the atom with this id, or -1
+     */
+    int get(String id) {
+        if (id == null) {
+            return -1;
+        }
+        int slot = spread(id.hashCode()) & mask;
+        while (ids[slot] != null) {
+            if (ids[slot].equals(id)) {
+                return indices[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,308 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+
+import org.xmlcml.cml.base.CMLBuilder;
+import org.xmlcml.cml.base.CMLConstants;
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * <p>
+ * Reads the molecules of a CML document one at a time, without building the
+ * document. The file is pulled through StAX and only the current
+ * <code>&lt;molecule&gt;</code> subtree is made into XOM, by the same node
+ * factory as {@link CMLBuilder} uses, so memory use does not depend on the
+ * size of the file. Everything outside the molecules is skipped.
+ *
+ * <p>
+ * Molecules are returned in document order. A molecule inside another, as
+ * for the components of a salt, is returned as part of the outer one.
+ * Elements with no namespace are read into the CML namespace, as older files
+ * often have none.
+ *
+ * <p>
+ * The reader can be iterated once, for instance to pass to
+ * {@link InChIGeneratorFactory#generateAll(Iterable, InChIOptions, ProcessingOptions[], InChIResultSink)};
+ * see also {@link InChIPipeline}. It is not thread-safe, and should be used
+ * on the thread that created it.
+ */
+public class CMLMoleculeReader implements Iterable<CMLMolecule>, Closeable {
+
+    private static final String MOLECULE = "molecule";
+
+    /**
+     * Per-thread input and node factories, as creating them looks up
+     * implementations and builds a SAX parser, which would dominate for
+     * the many small readers {@link MappedCMLReader} makes.
+     */
+    private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+            inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            return inputFactory;
+        }
+    };
+
+    private static final ThreadLocal<NodeFactory> NODE_FACTORY = new ThreadLocal<NodeFactory>() {
+        @Override
+        protected NodeFactory initialValue() {
+            return new CMLBuilder().getNodeFactory();
+        }
+    };
+
+    private final XMLStreamReader reader;
+
+    private final NodeFactory factory = NODE_FACTORY.get();
+
+    private final List<Element> stack = new ArrayList<Element>();
+
+    private EventHandler handler;
+
+    private boolean iterated;
+
+    /**
+     * @param in    CML; not closed by {@link #close()}
+     * @throws RuntimeException if the stream cannot be read as XML
+     */
+    public CMLMoleculeReader(InputStream in) {
+        try {
+            reader = INPUT_FACTORY.get().createXMLStreamReader(in);
+        } catch (XMLStreamException xse) {
+            throw new RuntimeException("Failed to read CML: " + xse.getMessage(), xse);
+        }
+    }
+
+    /**
+     * @param in    CML; not closed by {@link #close()}
+     * @throws RuntimeException if the stream cannot be read as XML
+     */
+    public CMLMoleculeReader(Reader in) {
+        try {
+            reader = INPUT_FACTORY.get().createXMLStreamReader(in);
+        } catch (XMLStreamException xse) {
+            throw new RuntimeException("Failed to read CML: " + xse.getMessage(), xse);
+        }
+    }
+
+    /**
+     * Told of each event as the reader passes it, in molecules or not,
+     * while the reader is on it.
+     */
+    interface EventHandler {
+
+        void handle(XMLStreamReader reader) throws XMLStreamException;
+
+    }
+
+    /**
+     * @param handler   told of every event read from now on, or null
+     */
+    void setEventHandler(EventHandler handler) {
+        this.handler = handler;
+    }
+
+    private int nextEvent() throws XMLStreamException {
+        int event = reader.next();
+        if (handler != null) {
+            handler.handle(reader);
+        }
+        return event;
+    }
+
+    /**
+     * @return the next molecule, or null at the end of the document
+     * @throws RuntimeException if the document is not well formed
+     */
+    public CMLMolecule next() {
+        try {
+            while (reader.hasNext()) {
+                if (nextEvent() == XMLStreamConstants.START_ELEMENT && isMolecule(reader)) {
+                    return readMolecule();
+                }
+            }
+            return null;
+        } catch (XMLStreamException xse) {
+            throw new RuntimeException("Failed to read CML: " + xse.getMessage(), xse);
+        }
+    }
+
+    /**
+     * @return true if the reader is on the start of a CML molecule
+     */
+    static boolean isMolecule(XMLStreamReader reader) {
+        return isElement(reader, MOLECULE);
+    }
+
+    /**
+     * @return true if the reader is on the start of the CML element
+     */
+    static boolean isElement(XMLStreamReader reader, String localName) {
+        return localName.equals(reader.getLocalName())
+                && CMLConstants.CML_NS.equals(namespace(reader.getNamespaceURI()));
+    }
+
+    /**
+     * Builds the subtree of the element the reader is on, as the node
+     * factory would for XOM's Builder.
+     */
+    private CMLMolecule readMolecule() throws XMLStreamException {
+        stack.clear();
+        stack.add(startElement());
+        Nodes result = null;
+        while (result == null) {
+            switch (nextEvent()) {
+            case XMLStreamConstants.START_ELEMENT:
+                stack.add(startElement());
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (!reader.isWhiteSpace()) {
+                    append(stack.get(stack.size() - 1), factory.makeText(reader.getText()));
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                Element element = stack.remove(stack.size() - 1);
+                Nodes nodes = factory.finishMakingElement(element);
+                if (stack.isEmpty()) {
+                    result = nodes;
+                } else {
+                    append(stack.get(stack.size() - 1), nodes);
+                }
+                break;
+            default:
+                // comments, processing instructions
+            }
+        }
+        for (int i = 0; i < result.size(); i++) {
+            if (result.get(i) instanceof CMLMolecule) {
+                return (CMLMolecule) result.get(i);
+            }
+        }
+        throw new RuntimeException("Failed to read CML: molecule at line "
+                + reader.getLocation().getLineNumber() + " did not build a CMLMolecule");
+    }
+
+    private Element startElement() {
+        String uri = namespace(reader.getNamespaceURI());
+        Element element = factory.startMakingElement(qualifiedName(reader.getPrefix(), reader.getLocalName()), uri);
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            String declared = reader.getNamespaceURI(i);
+            if (prefix != null && prefix.length() > 0 && declared != null && declared.length() > 0) {
+                element.addNamespaceDeclaration(prefix, declared);
+            }
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attributeUri = reader.getAttributeNamespace(i);
+            append(element, factory.makeAttribute(
+                    qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                    attributeUri == null ? "" : attributeUri,
+                    reader.getAttributeValue(i), Attribute.Type.UNDECLARED));
+        }
+        return element;
+    }
+
+    private static void append(Element parent, Nodes nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (node instanceof Attribute) {
+                parent.addAttribute((Attribute) node);
+            } else {
+                parent.appendChild(node);
+            }
+        }
+    }
+
+    private static String namespace(String uri) {
+        return uri == null || uri.length() == 0 ? CMLConstants.CML_NS : uri;
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.length() == 0 ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * @return iterator over the molecules not yet read
+     * @throws IllegalStateException if called more than once
+     */
+    public Iterator<CMLMolecule> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("Molecules can only be iterated once");
+        }
+        iterated = true;
+        return new Iterator<CMLMolecule>() {
+
+            private CMLMolecule next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    next = CMLMoleculeReader.this.next();
+                }
+                return next != null;
+            }
+
+            public CMLMolecule next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                CMLMolecule molecule = next;
+                next = null;
+                return molecule;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Stops reading. The underlying stream is left open.
+     *
+     * @throws RuntimeException
+     */
+    public void close() {
+        try {
+            reader.close();
+        } catch (XMLStreamException xse) {
+            throw new RuntimeException("Failed to close CML reader: " + xse.getMessage(), xse);
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import net.sf.jniinchi.JniInchiInput;
+
+/**
+ * Looks results up in an {@link InChIResultCache}, {@link InChIResultStore}
+ * or {@link InChIStructureCache} before passing the call on to another
+ * engine. Any of them may be null. Results found in the store are copied
+ * into the memory cache.
+ */
+final class CachedInChIEngine implements InChIEngine {
+
+    private final InChIResultCache resultCache;
+
+    private final InChIResultStore resultStore;
+
+    private final InChIStructureCache structureCache;
+
+    private final InChIEngine delegate;
+
+    CachedInChIEngine(InChIResultCache resultCache, InChIResultStore resultStore,
+            InChIStructureCache structureCache, InChIEngine delegate) {
+        this.resultCache = resultCache;
+        this.resultStore = resultStore;
+        this.structureCache = structureCache;
+        this.delegate = delegate;
+    }
+
+    public boolean isParallel() {
+        return delegate.isParallel();
+    }
+
+    public InChIResult getInchi(JniInchiInput input, String options, InChIResult.Detail detail, long timeout) {
+        if (resultCache == null && resultStore == null) {
+            return delegate.getInchi(input, options, detail, timeout);
+        }
+        InChIResultCache.Key key = InChIResultCache.keyFor(input, options, detail);
+        InChIResult result = resultCache == null ? null : resultCache.get(key);
+        if (result != null) {
+            return result;
+        }
+        result = resultStore == null ? null : resultStore.get(key);
+        if (result == null) {
+            result = delegate.getInchi(input, options, detail, timeout);
+            if (resultStore != null) {
+                resultStore.put(key, result);
+            }
+        }
+        if (resultCache != null) {
+            resultCache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * InChIs found in neither cache nor store go to the delegate as one
+     * batch.
+     */
+    public String[] getInchiKeys(String[] inchis) {
+        if (resultCache == null && resultStore == null) {
+            return delegate.getInchiKeys(inchis);
+        }
+        String[] keys = new String[inchis.length];
+        int[] missing = new int[inchis.length];
+        int missingCount = 0;
+        for (int i = 0; i < inchis.length; i++) {
+            if (inchis[i] == null) {
+                continue;
+            }
+            String key = resultCache == null ? null : resultCache.getInchiKey(inchis[i]);
+            if (key == null && resultStore != null) {
+                key = resultStore.getInchiKey(inchis[i]);
+                if (key != null && resultCache != null) {
+                    resultCache.putInchiKey(inchis[i], key);
+                }
+            }
+            if (key == null) {
+                missing[missingCount++] = i;
+            } else {
+                keys[i] = key;
+            }
+        }
+        if (missingCount > 0) {
+            String[] batch = new String[missingCount];
+            for (int i = 0; i < missingCount; i++) {
+                batch[i] = inchis[missing[i]];
+            }
+            String[] computed = delegate.getInchiKeys(batch);
+            for (int i = 0; i < missingCount; i++) {
+                String inchi = batch[i];
+                String key = computed[i];
+                keys[missing[i]] = key;
+                if (key == null) {
+                    continue;
+                }
+                if (resultCache != null) {
+                    resultCache.putInchiKey(inchi, key);
+                }
+                if (resultStore != null) {
+                    resultStore.putInchiKey(inchi, key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    public InChIStructure getStructure(String inchi, String options) {
+        if (structureCache == null || inchi == null) {
+            return delegate.getStructure(inchi, options);
+        }
+        InChIStructure structure = structureCache.get(inchi, options);
+        if (structure == null) {
+            structure = delegate.getStructure(inchi, options);
+            structureCache.put(inchi, options, structure);
+        }
+        return structure;
+    }
+
+}
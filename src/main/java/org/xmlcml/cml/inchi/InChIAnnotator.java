@@ -0,0 +1,397 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * <p>
+ * Copies a CML document, adding to each molecule an
+ * <code>&lt;identifier convention="iupac:inchi"&gt;</code> holding its InChI,
+ * and optionally one with convention <code>iupac:inchikey</code> holding its
+ * InChIKey, as {@link InChIGenerator#appendToMolecule()} would, but without
+ * building the document. The input is read with a
+ * {@link CMLMoleculeReader} and every event is copied to the output; a
+ * molecule's copy is held back only until its InChI is ready, so memory use
+ * does not depend on the size of the document.
+ *
+ * <p>
+ * Identifiers go at the end of the outermost molecules, with the same
+ * namespace prefix. Molecules that do not get an InChI are copied
+ * unchanged. The output is UTF-8; empty elements are written with start and
+ * end tags, and the document type declaration, if any, is copied as it was.
+ * The reader coalesces text, so CDATA sections are usually merged into the
+ * text around them and written as escaped text; any the parser still
+ * reports as CDATA are copied as CDATA sections.
+ *
+ * <p>
+ * In incremental mode each InChI is followed by a stamp identifier, and
+ * molecules whose stamp shows that their InChI is current are not passed
+ * to InChI again (see {@link ProcessingOptions#INCREMENTAL}). The InChI,
+ * InChIKey and stamp identifiers already at the top level of a molecule are
+ * dropped from the copy and written afresh at the end, so that rerunning
+ * over the output changes nothing but what is out of date.
+ */
+public class InChIAnnotator {
+
+    private final InChIGeneratorFactory factory;
+
+    private final InChIOptions options;
+
+    private boolean inchiKeys;
+
+    private boolean incremental;
+
+    /**
+     * @param factory
+     * @param options   options for InChI generation
+     */
+    public InChIAnnotator(InChIGeneratorFactory factory, InChIOptions options) {
+        this.factory = factory;
+        this.options = options;
+    }
+
+    /**
+     * @param inchiKeys true to add an InChIKey identifier after each InChI
+     */
+    public void setInchiKeys(boolean inchiKeys) {
+        this.inchiKeys = inchiKeys;
+    }
+
+    /**
+     * @return true if InChIKey identifiers are added
+     */
+    public boolean isInchiKeys() {
+        return inchiKeys;
+    }
+
+    /**
+     * @param incremental   true to stamp identifiers, and to keep those
+     *                      that are current instead of generating them again
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * @return true if identifiers are stamped and current ones kept
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Copies the document, adding identifiers. Neither stream is closed;
+     * the output is flushed.
+     *
+     * @param cml   CML document
+     * @param out   receives the annotated document
+     * @return number of molecules given an InChI
+     * @throws RuntimeException if the CML cannot be read or the output
+     *         cannot be written
+     */
+    public long annotate(InputStream cml, OutputStream out) {
+        Writer writer;
+        try {
+            writer = new OutputStreamWriter(out, "UTF-8");
+        } catch (IOException ioe) {
+            throw new RuntimeException("UTF-8 not available", ioe);
+        }
+        CMLMoleculeReader reader = new CMLMoleculeReader(cml);
+        try {
+            Copier copier = new Copier(reader, writer);
+            copier.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            List<ProcessingOptions> processingOptions = new ArrayList<ProcessingOptions>();
+            processingOptions.add(ProcessingOptions.USE_BONDS);
+            processingOptions.add(ProcessingOptions.INCHI_ONLY);
+            if (inchiKeys) {
+                processingOptions.add(ProcessingOptions.INCHI_KEY);
+            }
+            if (incremental) {
+                processingOptions.add(ProcessingOptions.INCREMENTAL);
+            }
+            factory.generateAll(copier, options,
+                    processingOptions.toArray(new ProcessingOptions[processingOptions.size()]), copier);
+            copier.write(copier.events.toString());
+            writer.flush();
+            return copier.annotated;
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to write CML: " + ioe.getMessage(), ioe);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A molecule's copy waiting for its InChI: everything read since the
+     * previous molecule, up to but not including the molecule's end tag,
+     * then the end tag.
+     */
+    private static final class Pending {
+
+        private final String head;
+
+        private final String tail;
+
+        private final String prefix;
+
+        Pending(String head, String tail, String prefix) {
+            this.head = head;
+            this.tail = tail;
+            this.prefix = prefix;
+        }
+
+    }
+
+    /**
+     * Serialises the events the reader passes, and writes each molecule's
+     * copy with its identifiers when its result arrives. Reading and
+     * writing both happen on the thread calling generateAll. In incremental
+     * mode the molecule's own InChI, InChIKey and stamp identifiers are
+     * skipped, the generator having read them from the molecule.
+     */
+    private final class Copier implements CMLMoleculeReader.EventHandler,
+            Iterable<CMLMolecule>, InChIResultSink {
+
+        private final CMLMoleculeReader reader;
+
+        private final Writer writer;
+
+        private final StringBuilder events = new StringBuilder();
+
+        private final LinkedList<Pending> pending = new LinkedList<Pending>();
+
+        private int depth;
+
+        private int moleculeDepth = -1;
+
+        private String moleculePrefix;
+
+        private int moleculeEnd;
+
+        private int skipDepth = -1;
+
+        private long annotated;
+
+        Copier(CMLMoleculeReader reader, Writer writer) {
+            this.reader = reader;
+            this.writer = writer;
+            reader.setEventHandler(this);
+        }
+
+        public Iterator<CMLMolecule> iterator() {
+            final Iterator<CMLMolecule> molecules = reader.iterator();
+            return new Iterator<CMLMolecule>() {
+
+                public boolean hasNext() {
+                    return molecules.hasNext();
+                }
+
+                public CMLMolecule next() {
+                    CMLMolecule molecule = molecules.next();
+                    pending.add(new Pending(events.substring(0, moleculeEnd),
+                            events.substring(moleculeEnd), moleculePrefix));
+                    events.setLength(0);
+                    return molecule;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        public void accept(InChIResult result) {
+            Pending molecule = pending.removeFirst();
+            write(molecule.head);
+            if (result.getInchi() != null) {
+                writeIdentifier(molecule.prefix, InChIGenerator.CML_INCHI_CONVENTION, result.getInchi());
+                if (result.getInchiKey() != null) {
+                    writeIdentifier(molecule.prefix, InChIGenerator.INCHIKEY_CONVENTION, result.getInchiKey());
+                }
+                if (result.getStamp() != null) {
+                    writeIdentifier(molecule.prefix, InChIStamp.CONVENTION, result.getStamp());
+                }
+                annotated++;
+            }
+            write(molecule.tail);
+        }
+
+        private void writeIdentifier(String prefix, String convention, String value) {
+            String name = prefix.length() == 0 ? "identifier" : prefix + ":identifier";
+            write("<" + name + " convention=\"" + convention + "\">");
+            StringBuilder escaped = new StringBuilder(value.length());
+            escape(value, false, escaped);
+            write(escaped.toString());
+            write("</" + name + ">");
+        }
+
+        void write(String s) {
+            try {
+                writer.write(s);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Failed to write CML: " + ioe.getMessage(), ioe);
+            }
+        }
+
+        public void handle(XMLStreamReader r) throws XMLStreamException {
+            if (skipDepth >= 0) {
+                if (r.getEventType() == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (r.getEventType() == XMLStreamConstants.END_ELEMENT && --depth == skipDepth) {
+                    skipDepth = -1;
+                }
+                return;
+            }
+            switch (r.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                if (incremental && moleculeDepth >= 0 && depth == moleculeDepth + 1 && isReplaced(r)) {
+                    skipDepth = depth++;
+                    return;
+                }
+                if (moleculeDepth < 0 && CMLMoleculeReader.isMolecule(r)) {
+                    moleculeDepth = depth;
+                    moleculePrefix = r.getPrefix() == null ? "" : r.getPrefix();
+                }
+                depth++;
+                events.append('<');
+                appendName(r.getPrefix(), r.getLocalName());
+                for (int i = 0; i < r.getNamespaceCount(); i++) {
+                    String prefix = r.getNamespacePrefix(i);
+                    events.append(prefix == null || prefix.length() == 0 ? " xmlns" : " xmlns:" + prefix)
+                            .append("=\"");
+                    escape(r.getNamespaceURI(i) == null ? "" : r.getNamespaceURI(i), true, events);
+                    events.append('"');
+                }
+                for (int i = 0; i < r.getAttributeCount(); i++) {
+                    events.append(' ');
+                    appendName(r.getAttributePrefix(i), r.getAttributeLocalName(i));
+                    events.append("=\"");
+                    escape(r.getAttributeValue(i), true, events);
+                    events.append('"');
+                }
+                events.append('>');
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                if (depth == moleculeDepth) {
+                    moleculeEnd = events.length();
+                    moleculeDepth = -1;
+                }
+                events.append("</");
+                appendName(r.getPrefix(), r.getLocalName());
+                events.append('>');
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                escape(r.getText(), false, events);
+                break;
+            case XMLStreamConstants.CDATA:
+                events.append("<![CDATA[").append(r.getText()).append("]]>");
+                break;
+            case XMLStreamConstants.COMMENT:
+                events.append("<!--").append(r.getText()).append("-->");
+                if (depth == 0) {
+                    events.append('\n');
+                }
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                events.append("<?").append(r.getPITarget());
+                if (r.getPIData() != null && r.getPIData().length() > 0) {
+                    events.append(' ').append(r.getPIData());
+                }
+                events.append("?>");
+                if (depth == 0) {
+                    events.append('\n');
+                }
+                break;
+            case XMLStreamConstants.DTD:
+                events.append(r.getText()).append('\n');
+                break;
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                events.append('&').append(r.getLocalName()).append(';');
+                break;
+            default:
+                // end of document
+            }
+        }
+
+        private boolean isReplaced(XMLStreamReader r) {
+            if (!CMLMoleculeReader.isElement(r, "identifier")) {
+                return false;
+            }
+            String convention = r.getAttributeValue(null, "convention");
+            return InChIGenerator.CML_INCHI_CONVENTION.equals(convention)
+                    || InChIGenerator.INCHIKEY_CONVENTION.equals(convention)
+                    || InChIStamp.CONVENTION.equals(convention);
+        }
+
+        private void appendName(String prefix, String localName) {
+            if (prefix != null && prefix.length() > 0) {
+                events.append(prefix).append(':');
+            }
+            events.append(localName);
+        }
+
+    }
+
+    private static void escape(String s, boolean attribute, StringBuilder sb) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&':
+                sb.append("&amp;");
+                break;
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '"':
+                sb.append(attribute ? "&quot;" : "\"");
+                break;
+            case '\r':
+                sb.append("&#13;");
+                break;
+            case '\n':
+                sb.append(attribute ? "&#10;" : "\n");
+                break;
+            case '\t':
+                sb.append(attribute ? "&#9;" : "\t");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+    }
+
+}
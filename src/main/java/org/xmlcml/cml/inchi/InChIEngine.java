@@ -0,0 +1,64 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import net.sf.jniinchi.JniInchiInput;
+
+/**
+ * Somewhere the InChI library can be called: either in this JVM through
+ * JniInchiWrapper or in a pool of worker processes.
+ */
+interface InChIEngine {
+
+    /**
+     * @param input    atoms, bonds and stereo for the molecule
+     * @param options  option string the input was built with
+     * @param detail   how much of the output to keep
+     * @param timeout  milliseconds to wait for the result, 0 for no limit
+     * @return result
+     * @throws InChITimeoutException if the timeout passes
+     * @throws IllegalStateException if a timeout is given but the engine
+     *             cannot stop a call
+     * @throws RuntimeException
+     */
+    InChIResult getInchi(JniInchiInput input, String options, InChIResult.Detail detail, long timeout);
+
+    /**
+     * @param inchi
+     * @param options
+     * @return decoded structure
+     * @throws RuntimeException
+     */
+    InChIStructure getStructure(String inchi, String options);
+
+    /**
+     * Hashes InChIs in one call, so that a batch goes through the library
+     * (or one worker) in one go.
+     *
+     * @param inchis   InChIs, entries may be null
+     * @return InChIKeys in the same order, null where there is no InChI or
+     *         InChI rejected it
+     * @throws RuntimeException
+     */
+    String[] getInchiKeys(String[] inchis);
+
+    /**
+     * @return true if several threads calling at once will be served at once
+     */
+    boolean isParallel();
+
+}
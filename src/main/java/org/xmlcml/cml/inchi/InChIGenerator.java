@@ -16,12 +16,11 @@
 
 package org.xmlcml.cml.inchi;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import net.sf.jniinchi.INCHI_BOND_STEREO;
 import net.sf.jniinchi.INCHI_BOND_TYPE;
 import net.sf.jniinchi.INCHI_PARITY;
 import net.sf.jniinchi.INCHI_RADICAL;
@@ -32,9 +31,11 @@ import net.sf.jniinchi.JniInchiException;
 import net.sf.jniinchi.JniInchiInput;
 import net.sf.jniinchi.JniInchiOutput;
 import net.sf.jniinchi.JniInchiStereo0D;
-import net.sf.jniinchi.JniInchiWrapper;
+import nu.xom.Element;
+import nu.xom.Elements;
 import nu.xom.Text;
 
+import org.xmlcml.cml.base.CMLConstants;
 import org.xmlcml.cml.base.CMLElement;
 import org.xmlcml.cml.base.CMLElements;
 import org.xmlcml.cml.element.CMLAtom;
@@ -100,13 +101,38 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
 
     protected JniInchiInput input;
 
+    /**
+     * Output of the library, set only when InChI ran in this JVM with no
+     * result cache or store in front of it; otherwise null.
+     *
+     * @deprecated since 1.1, results may come from worker processes or a
+     *             cache; use {@link #getResult()} or the getters
+     */
+    @Deprecated
     protected JniInchiOutput output;
 
+    /**
+     * Options the input was built with, in the canonical form of
+     * {@link InChIOptions}, for the worker processes and caches.
+     */
+    protected String options;
+
+    InChIResult result;
+
+    InChIEngine engine = NativeInChIEngine.INSTANCE;
+
+    InChIMetricsListener listener;
+
     /**
      * Convention to use when constructing CMLIdentifier to hold InChI.
      */
     protected static final String CML_INCHI_CONVENTION = "iupac:inchi";
 
+    /**
+     * Convention of the CMLIdentifier holding the InChIKey.
+     */
+    static final String INCHIKEY_CONVENTION = "iupac:inchikey";
+
 //    private static final Log LOG = LogFactory.getLog(InChIGenerator.class);
 
     private static final ProcessingOptions[] DEFAULT_PROCESSING_OPTIONS = new ProcessingOptions[] { ProcessingOptions.USE_BONDS };
@@ -116,12 +142,37 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
      */
     protected CMLMolecule molecule;
 
+    /**
+     * Table instance refers to, instead of a molecule.
+     */
+    MoleculeTable table;
+
     private Problems preInChiProblem = null;
 
     private ProcessingOptions[] processingOptions = DEFAULT_PROCESSING_OPTIONS;
 
     private boolean generated;
 
+    private String inchiKey;
+
+    private InChIResult.Detail detail = InChIResult.Detail.FULL;
+
+    private String libraryOptions;
+
+    /**
+     * Options as parsed, from which the AuxNone variant is taken.
+     */
+    private final InChIOptions inchiOptions;
+
+    private long timeout;
+
+    private InChIStamp stamp;
+
+    /**
+     * True if the result was read from the molecule's identifiers.
+     */
+    private boolean stored;
+
     /**
      * <p>
      * Constructor. Generates InChI from CMLMolecule.
@@ -135,12 +186,7 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
      * @throws RuntimeException
      */
     protected InChIGenerator(CMLMolecule molecule) {
-        this.molecule = molecule;
-        try {
-            input = new JniInchiInput("");
-        } catch (JniInchiException e) {
-            throw new RuntimeException(e);
-        }
+        this(molecule, InChIOptions.NONE);
     }
 
     /**
@@ -161,12 +207,7 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
      */
     protected InChIGenerator(CMLMolecule molecule, String options)
             {
-        try {
-            this.molecule = molecule;
-            input = new JniInchiInput(options);
-        } catch (JniInchiException jie) {
-            throw new RuntimeException(jie);
-        }
+        this(molecule, InChIOptions.valueOf(options));
     }
 
     /**
@@ -185,17 +226,91 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
      */
     protected InChIGenerator(CMLMolecule molecule, List<?> options)
             {
-        try {
-            this.molecule = molecule;
-            input = new JniInchiInput(options);
-        } catch (JniInchiException jie) {
-            throw new RuntimeException(jie);
-        }
+        this(molecule, InChIOptions.valueOf(options));
+    }
+
+    /**
+     * <p>
+     * Constructor. Generates InChI from CMLMolecule.
+     *
+     * <p>
+     * Reads atoms, bonds etc from molecule and converts to format InChI library
+     * requires, then calls the library.
+     *
+     * @param molecule
+     *            Molecule to generate InChI for.
+     * @param options
+     *            Options, already parsed.
+     * @throws RuntimeException
+     */
+    protected InChIGenerator(CMLMolecule molecule, InChIOptions options)
+            {
+        this.options = options.toString();
+        this.inchiOptions = options;
+        init(molecule);
+    }
+
+    /**
+     * <p>
+     * Constructor. Generates InChI from a table of atoms and bonds, without
+     * a CMLMolecule.
+     *
+     * @param table
+     *            Molecule to generate InChI for.
+     * @param options
+     *            Options, already parsed.
+     * @throws RuntimeException
+     */
+    protected InChIGenerator(MoleculeTable table, InChIOptions options)
+            {
+        this.options = options.toString();
+        this.inchiOptions = options;
+        init(null);
+        this.table = table;
+    }
+
+    /**
+     * Points the generator at another molecule, discarding the results for
+     * the previous one, so that it can be generated again. Options and
+     * processing options are kept.
+     *
+     * @param molecule
+     *            Molecule to generate InChI for.
+     * @throws RuntimeException
+     */
+    public void reset(CMLMolecule molecule) {
+        init(molecule);
+    }
+
+    /**
+     * Points the generator at a table of atoms and bonds, as
+     * {@link #reset(CMLMolecule)}.
+     *
+     * @param table
+     *            Molecule to generate InChI for.
+     * @throws RuntimeException
+     */
+    public void reset(MoleculeTable table) {
+        init(null);
+        this.table = table;
+    }
+
+    private void init(CMLMolecule molecule) {
+        input = null;
+        this.molecule = molecule;
+        this.table = null;
+        result = null;
+        output = null;
+        preInChiProblem = null;
+        inchiKey = null;
+        stamp = null;
+        stored = false;
+        generated = false;
     }
 
     /**
      * Does the work of calling InChI. Can be called only once for each
-     * generator.
+     * generator, unless it is {@link #reset(CMLMolecule)}.
      *
      * @throws RuntimeException
      * @throws IllegalStateException
@@ -206,8 +321,90 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
         if (generated) {
             throw new IllegalStateException("Generator cannot be reused");
         }
-        generateInchiFromCMLMolecule(molecule);
+        if (table != null) {
+            long start = listener == null ? 0 : System.nanoTime();
+            boolean extracted = extractTable(table);
+            extracted(start);
+            if (extracted) {
+                callInchi();
+            }
+        } else {
+            generateInchiFromCMLMolecule(molecule);
+        }
+        finish();
+    }
+
+    /**
+     * Generates as {@link #generate()}, but stops InChI if it has not
+     * finished within the timeout. A molecule that runs out of time gets
+     * the problem {@link Problems#TIMEOUT} instead of a result. The timeout
+     * applies to this call only; that of {@link #setTimeout(long, TimeUnit)}
+     * is left as it was.
+     *
+     * @param timeout
+     * @param unit
+     * @throws RuntimeException
+     * @throws IllegalStateException
+     *             if generation has already been done, or InChI runs in
+     *             this JVM, where calls cannot be stopped
+     * @see InChIGeneratorFactory#startWorkers(int)
+     */
+    public void generate(long timeout, TimeUnit unit) {
+        if (generated) {
+            throw new IllegalStateException("Generator cannot be reused");
+        }
+        long saved = this.timeout;
+        setTimeout(timeout, unit);
+        try {
+            generate();
+        } finally {
+            this.timeout = saved;
+        }
+    }
+
+    /**
+     * First stage of batch generation: extracts the InChI input from the
+     * molecule without calling the library. May be run on any thread.
+     */
+    void extract() {
+        if (generated) {
+            throw new IllegalStateException("Generator cannot be reused");
+        }
+        long start = listener == null ? 0 : System.nanoTime();
+        if (table != null) {
+            extractTable(table);
+        } else {
+            extractInput(molecule);
+        }
+        extracted(start);
+    }
+
+    /**
+     * Second stage of batch generation: calls the library on the input
+     * prepared by {@link #extract()}.
+     */
+    void generateExtracted() {
+        if (preInChiProblem == null && !reuseStored()) {
+            callInchi();
+        }
+        finish();
+    }
+
+    private void extracted(long start) {
+        if (listener != null) {
+            listener.phaseCompleted(InChIMetricsListener.Phase.EXTRACT, System.nanoTime() - start);
+        }
+    }
+
+    private void finish() {
         generated = true;
+        if (listener != null) {
+            if (preInChiProblem != null) {
+                listener.inchiProblem(preInChiProblem);
+            } else {
+                listener.inchiGenerated(result.getReturnStatus());
+            }
+        }
     }
 
     /**
@@ -231,40 +428,122 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
      */
     protected void generateInchiFromCMLMolecule(CMLMolecule molecule)
             {
+        long start = listener == null ? 0 : System.nanoTime();
+        boolean extracted = extractInput(molecule);
+        extracted(start);
+        if (extracted && !reuseStored()) {
+            callInchi();
+        }
+    }
 
-        List<CMLAtom> atoms = molecule.getAtoms();
-        List<CMLBond> bonds = molecule.getBonds();
-
-        // Create map of atom neighbours - required to calculate implicit
-        // hydrogen counts
-        Map<CMLAtom, List<CMLAtom>> atomNeighbours = new HashMap<CMLAtom, List<CMLAtom>>();
-        for (int i = 0; i < atoms.size(); i++) {
-            atomNeighbours.put(atoms.get(i), new ArrayList<CMLAtom>(4));
+    /**
+     * With {@link ProcessingOptions#INCREMENTAL}, takes the result from the
+     * molecule's identifiers if they hold an InChI, and the InChIKey if it
+     * was asked for, and are stamped as made from the input just extracted.
+     * Such a result has no AuxInfo, message or log.
+     *
+     * @return true if the library need not be called
+     */
+    private boolean reuseStored() {
+        if (molecule == null || !optionsContains(ProcessingOptions.INCREMENTAL)) {
+            return false;
         }
-        for (int i = 0; i < bonds.size(); i++) {
-            CMLBond bond = (CMLBond) bonds.get(i);
-            CMLAtom at0 = bond.getAtom(0);
-            CMLAtom at1 = bond.getAtom(1);
-            atomNeighbours.get(at0).add(at1);
-            atomNeighbours.get(at1).add(at0);
+        String storedInchi = null;
+        String storedKey = null;
+        InChIStamp storedStamp = null;
+        Elements identifiers = molecule.getChildElements("identifier", CMLConstants.CML_NS);
+        for (int i = 0; i < identifiers.size(); i++) {
+            Element identifier = identifiers.get(i);
+            String convention = identifier.getAttributeValue("convention");
+            if (CML_INCHI_CONVENTION.equals(convention)) {
+                storedInchi = identifier.getValue().trim();
+            } else if (INCHIKEY_CONVENTION.equals(convention)) {
+                storedKey = identifier.getValue().trim();
+            } else if (InChIStamp.CONVENTION.equals(convention)) {
+                storedStamp = InChIStamp.valueOf(identifier.getValue());
+            }
+        }
+        if (storedStamp == null || storedInchi == null || storedInchi.length() == 0
+                || (optionsContains(ProcessingOptions.INCHI_KEY) && (storedKey == null || storedKey.length() == 0))
+                || !storedStamp.matches(InChIStamp.forInput(input, options, storedStamp.getStatus()))) {
+            return false;
+        }
+        result = new InChIResult(storedStamp.getStatus(),
+                detail == InChIResult.Detail.STATUS ? null : storedInchi, null, null, null);
+        if (storedKey != null && storedKey.length() > 0) {
+            inchiKey = storedKey;
         }
+        stamp = storedStamp;
+        stored = true;
+        return true;
+    }
+
+    private InChIStamp getStamp() {
+        if (stamp == null) {
+            stamp = InChIStamp.forInput(input, options, result.getReturnStatus());
+        }
+        return stamp;
+    }
+
+    /**
+     * <p>
+     * Reads atoms, bonds etc from molecule and converts them to the format
+     * the InChI library requires. Does not call the library.
+     *
+     * @param molecule
+     * @return false if a problem was found before reaching InChI (see
+     *         {@link #getPreInChiProblem()})
+     * @throws RuntimeException
+     */
+    protected boolean extractInput(CMLMolecule molecule) {
+        createInput();
 
-        // Check for 3d coordinates
+        List<CMLAtom> atoms = molecule.getAtoms();
+        List<CMLBond> bonds = molecule.getBonds();
+        int atomCount = atoms.size();
+        int bondCount = bonds.size();
+
+        // Index atoms by id, and check for 3d coordinates
+        AtomIndex index = new AtomIndex(atomCount);
+        boolean[] hydrogen = new boolean[atomCount];
         boolean all3d = true;
         boolean all2d = true;
-        for (int i = 0; i < atoms.size(); i++) {
+        for (int i = 0; i < atomCount; i++) {
             CMLAtom atom = atoms.get(i);
-            if (!atom.hasCoordinates(CMLElement.CoordinateType.CARTESIAN)) {
+            index.put(atom.getId(), i);
+            hydrogen[i] = AS.H.equals(atom.getElementType());
+            if (all3d && !atom.hasCoordinates(CMLElement.CoordinateType.CARTESIAN)) {
                 all3d = false;
             }
-            if (!atom.hasCoordinates(CMLElement.CoordinateType.TWOD)) {
+            if (all2d && !atom.hasCoordinates(CMLElement.CoordinateType.TWOD)) {
                 all2d = false;
             }
         }
 
+        // Resolve bond ends, and count hydrogen neighbours - required to
+        // calculate implicit hydrogen counts
+        int[] bondAtoms = new int[2 * bondCount];
+        int[] hydrogenNeighbours = new int[atomCount];
+        for (int i = 0; i < bondCount; i++) {
+            String[] refs = bonds.get(i).getAtomRefs2();
+            int at0 = refs == null ? -1 : index.get(refs[0]);
+            int at1 = refs == null ? -1 : index.get(refs[1]);
+            if (at0 < 0 || at1 < 0) {
+                throw new RuntimeException("Bond refers to unknown atom: " + bonds.get(i));
+            }
+            bondAtoms[2 * i] = at0;
+            bondAtoms[2 * i + 1] = at1;
+            if (hydrogen[at1]) {
+                hydrogenNeighbours[at0]++;
+            }
+            if (hydrogen[at0]) {
+                hydrogenNeighbours[at1]++;
+            }
+        }
+
         // Process atoms
-        Map<CMLAtom, JniInchiAtom> atomMap = new HashMap<CMLAtom, JniInchiAtom>();
-        for (int i = 0; i < atoms.size(); i++) {
+        JniInchiAtom[] iatoms = new JniInchiAtom[atomCount];
+        for (int i = 0; i < atomCount; i++) {
             CMLAtom atom = atoms.get(i);
             double x, y, z;
             if (all3d) {
@@ -283,7 +562,7 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
             String el = atom.getElementType();
 
             JniInchiAtom iatom = input.addAtom(new JniInchiAtom(x, y, z, el));
-            atomMap.put(atom, iatom);
+            iatoms[i] = iatom;
 
             int charge = atom
                     .getFormalCharge(CMLElement.FormalChargeControl.DEFAULT);
@@ -291,30 +570,17 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
                 iatom.setCharge(charge);
             }
 
-            try {
-                int spinMultiplicity = atom.getSpinMultiplicity();
-                if (spinMultiplicity == 0) {
-                    iatom.setRadical(INCHI_RADICAL.NONE);
-                } else if (spinMultiplicity == 1) {
-                    iatom.setRadical(INCHI_RADICAL.SINGLET);
-                } else if (spinMultiplicity == 2) {
-                    iatom.setRadical(INCHI_RADICAL.DOUBLET);
-                } else if (spinMultiplicity == 3) {
-                    iatom.setRadical(INCHI_RADICAL.TRIPLET);
-                } else {
-                    throw new RuntimeException(
-                            "Failed to generate InChI: Unsupported spin multiplicity: "
-                                    + spinMultiplicity);
+            if (atom.getSpinMultiplicityAttribute() != null) {
+                INCHI_RADICAL radical = toRadical(atom.getSpinMultiplicity());
+                if (radical == null) {
+                    preInChiProblem = Problems.SPIN_MULTIPLICITY;
+                    return false;
                 }
-            } catch (RuntimeException cre) {
-                // Spin multiplicity not set
+                iatom.setRadical(radical);
             }
 
-            try {
-                int isotopeNumber = atom.getIsotopeNumber();
-                iatom.setIsotopicMass(isotopeNumber);
-            } catch (RuntimeException cre) {
-                // Isotope number not set
+            if (atom.getIsotopeNumberAttribute() != null) {
+                iatom.setIsotopicMass(atom.getIsotopeNumber());
             }
 
             // Calculate implicit hydrogens
@@ -322,17 +588,9 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
             if (atom.getHydrogenCountAttribute() == null) {
                 hcount = -1;
             } else {
-                hcount = atom.getHydrogenCount();
-
                 // getHydrogenCount returns total hydrogens, InChI wants implict
                 // so we must remove number of hydrogen ligands
-                List<CMLAtom> neighbours = atomNeighbours.get(atom);
-                for (int j = 0; j < neighbours.size(); j++) {
-                    CMLAtom neigh = neighbours.get(j);
-                    if (AS.H.equals(neigh.getElementType())) {
-                        hcount--;
-                    }
-                }
+                hcount = atom.getHydrogenCount() - hydrogenNeighbours[i];
 
                 if (hcount < 0) {
                     throw new RuntimeException(
@@ -342,11 +600,11 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
             iatom.setImplicitH(hcount);
         }
 
-        for (CMLAtom atom : atoms) {//add atomParities
-        	CMLElements<CMLAtomParity> atomParities = atom.getAtomParityElements();//expect none or 1
+        JniInchiAtom[] refAtoms = new JniInchiAtom[4];
+        for (int i = 0; i < atomCount; i++) {//add atomParities
+        	CMLElements<CMLAtomParity> atomParities = atoms.get(i).getAtomParityElements();//expect none or 1
         	for (CMLAtomParity atomParity : atomParities) {
-				CMLAtom[] atomRefs4 = atomParity.getAtomRefs4(molecule);
-				if (atomRefs4 != null){
+				if (resolve(atomParity.getAtomRefs4(), index, iatoms, refAtoms)){
 					INCHI_PARITY parity =INCHI_PARITY.UNKNOWN;
 					if (atomParity.getIntegerValue() > 0){
 						parity =INCHI_PARITY.EVEN;
@@ -354,18 +612,18 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
 					else if (atomParity.getIntegerValue() < 0){
 						parity =INCHI_PARITY.ODD;
 					}
-					input.addStereo0D(JniInchiStereo0D.createNewTetrahedralStereo0D(atomMap.get(atom), atomMap.get(atomRefs4[0]), atomMap.get(atomRefs4[1]), atomMap.get(atomRefs4[2]), atomMap.get(atomRefs4[3]), parity));
+					input.addStereo0D(JniInchiStereo0D.createNewTetrahedralStereo0D(iatoms[i], refAtoms[0], refAtoms[1], refAtoms[2], refAtoms[3], parity));
 				}
 			}
         }
 
         if (optionsContains(ProcessingOptions.USE_BONDS)) {
             // Process bonds
-            for (int i = 0; i < bonds.size(); i++) {
-                CMLBond bond = (CMLBond) bonds.get(i);
+            for (int i = 0; i < bondCount; i++) {
+                CMLBond bond = bonds.get(i);
 
-                JniInchiAtom at0 = atomMap.get(bond.getAtom(0));
-                JniInchiAtom at1 = atomMap.get(bond.getAtom(1));
+                JniInchiAtom at0 = iatoms[bondAtoms[2 * i]];
+                JniInchiAtom at1 = iatoms[bondAtoms[2 * i + 1]];
 
                 INCHI_BOND_TYPE order;
                 String bo = bond.getOrder();
@@ -381,7 +639,7 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
                 } else {
                     System.out.println("Unsupported bond order: " + bo);
                     preInChiProblem = Problems.BOND_ORDER;
-                    return;
+                    return false;
                 }
 
                 input.addBond(new JniInchiBond(at0, at1, order));
@@ -391,31 +649,272 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
         for (CMLBond bond : bonds) {//add bondStereos
         	CMLElements<CMLBondStereo> bondStereos = bond.getBondStereoElements();//expect none or 1
         	for (CMLBondStereo bondStereo : bondStereos) {
-				String[] atomRefs4Ids = bondStereo.getAtomRefs4();
-				if(atomRefs4Ids==null){
-					continue;
-				}
-				List<JniInchiAtom> jniAtoms = new ArrayList<JniInchiAtom>();
-				for (String atomRefId : atomRefs4Ids) {
-					jniAtoms.add(atomMap.get(molecule.getAtomById(atomRefId)));
-				}
-				if (jniAtoms.size()==4){
+				if (resolve(bondStereo.getAtomRefs4(), index, iatoms, refAtoms)){
 					if (CMLBond.CIS.equals(bondStereo.getXMLContent())){
-						input.addStereo0D(JniInchiStereo0D.createNewDoublebondStereo0D(jniAtoms.get(0), jniAtoms.get(1), jniAtoms.get(2), jniAtoms.get(3), INCHI_PARITY.ODD));
+						input.addStereo0D(JniInchiStereo0D.createNewDoublebondStereo0D(refAtoms[0], refAtoms[1], refAtoms[2], refAtoms[3], INCHI_PARITY.ODD));
 					}
 					else if (CMLBond.TRANS.equals(bondStereo.getXMLContent())){
-						input.addStereo0D(JniInchiStereo0D.createNewDoublebondStereo0D(jniAtoms.get(0), jniAtoms.get(1), jniAtoms.get(2), jniAtoms.get(3), INCHI_PARITY.EVEN));
+						input.addStereo0D(JniInchiStereo0D.createNewDoublebondStereo0D(refAtoms[0], refAtoms[1], refAtoms[2], refAtoms[3], INCHI_PARITY.EVEN));
 					}
 				}
 			}
         }
+        return true;
+    }
+
+    /**
+     * Passes the extracted input to the InChI library, in this JVM or in a
+     * worker process.
+     *
+     * @throws RuntimeException
+     */
+    protected void callInchi() {
+        if (listener != null) {
+            listener.inchiStarted(input.getNumAtoms(), input.getNumBonds(), libraryOptions);
+        }
+        try {
+            if (engine instanceof NativeInChIEngine) {
+                // fills the deprecated field for subclasses that read it
+                NativeInChIEngine nativeEngine = (NativeInChIEngine) engine;
+                output = nativeEngine.getOutput(input, timeout);
+                result = nativeEngine.toResult(output, detail);
+            } else {
+                result = engine.getInchi(input, libraryOptions, detail, timeout);
+            }
+        } catch (InChITimeoutException ite) {
+            result = null;
+            preInChiProblem = Problems.TIMEOUT;
+        }
+    }
 
+    /**
+     * Starts a fresh input for the library. If only the InChI or status is
+     * wanted, AuxNone is added to the options so that AuxInfo is not made.
+     */
+    private void createInput() {
+        if (optionsContains(ProcessingOptions.STATUS_ONLY)) {
+            detail = InChIResult.Detail.STATUS;
+        } else if (optionsContains(ProcessingOptions.INCHI_ONLY)) {
+            detail = InChIResult.Detail.INCHI;
+        } else {
+            detail = InChIResult.Detail.FULL;
+        }
+        libraryOptions = detail == InChIResult.Detail.FULL
+                ? options : inchiOptions.withoutAuxInfo().toString();
         try {
-            output = JniInchiWrapper.getInchi(input);
+            input = new JniInchiInput(libraryOptions);
         } catch (JniInchiException jie) {
-            throw new RuntimeException("Failed to generate InChI: "
-                    + jie.getMessage());
+            throw new RuntimeException(jie);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the processing options asked for less
+     */
+    private void checkRequested(InChIResult.Detail needed, String what) {
+        if (detail.compareTo(needed) > 0) {
+            throw new IllegalStateException(what + " was not requested (processing option "
+                    + (detail == InChIResult.Detail.STATUS ? ProcessingOptions.STATUS_ONLY
+                            : ProcessingOptions.INCHI_ONLY) + ")");
+        }
+    }
+
+    /**
+     * <p>
+     * Converts a table of atoms and bonds to the format the InChI library
+     * requires, as {@link #extractInput(CMLMolecule)} does for a molecule.
+     * Does not call the library.
+     *
+     * @param table
+     * @return false if a problem was found before reaching InChI
+     */
+    boolean extractTable(MoleculeTable table) {
+        createInput();
+        if (table.problem != null) {
+            preInChiProblem = table.problem;
+            return false;
+        }
+        int atomCount = table.getAtomCount();
+        JniInchiAtom[] iatoms = new JniInchiAtom[atomCount];
+        for (int i = 0; i < atomCount; i++) {
+            double x = 0, y = 0, z = 0;
+            if (table.x != null) {
+                x = table.x[i];
+                y = table.y[i];
+                if (table.z != null) {
+                    z = table.z[i];
+                }
+            }
+            JniInchiAtom iatom = input.addAtom(new JniInchiAtom(x, y, z, table.elements[i]));
+            iatoms[i] = iatom;
+
+            if (table.charges != null && table.charges[i] != 0) {
+                iatom.setCharge(table.charges[i]);
+            }
+            if (table.spinMultiplicities != null && table.spinMultiplicities[i] != 0) {
+                INCHI_RADICAL radical = toRadical(table.spinMultiplicities[i]);
+                if (radical == null) {
+                    preInChiProblem = Problems.SPIN_MULTIPLICITY;
+                    return false;
+                }
+                iatom.setRadical(radical);
+            }
+            if (table.isotopes != null && table.isotopes[i] != 0) {
+                iatom.setIsotopicMass(table.isotopes[i]);
+            }
+            iatom.setImplicitH(table.implicitH == null ? -1 : table.implicitH[i]);
+        }
+
+        if (optionsContains(ProcessingOptions.USE_BONDS)) {
+            for (int i = 0; i < table.getBondCount(); i++) {
+                INCHI_BOND_TYPE order;
+                switch (table.bondOrders[i]) {
+                case 1:
+                    order = INCHI_BOND_TYPE.SINGLE;
+                    break;
+                case 2:
+                    order = INCHI_BOND_TYPE.DOUBLE;
+                    break;
+                case 3:
+                    order = INCHI_BOND_TYPE.TRIPLE;
+                    break;
+                default:
+                    order = INCHI_BOND_TYPE.ALTERN;
+                    break;
+                }
+                INCHI_BOND_STEREO stereo = table.bondStereo == null ? INCHI_BOND_STEREO.NONE
+                        : toBondStereo(table.bondStereo[i]);
+                input.addBond(new JniInchiBond(iatoms[table.bondAtoms0[i]],
+                        iatoms[table.bondAtoms1[i]], order, stereo));
+            }
+            if (table.parities != null && table.x == null) {
+                addParities(table, iatoms);
+            }
         }
+        return true;
+    }
+
+    private static INCHI_BOND_STEREO toBondStereo(int stereo) {
+        switch (stereo) {
+        case MoleculeTable.WEDGE_UP:
+            return INCHI_BOND_STEREO.SINGLE_1UP;
+        case MoleculeTable.WEDGE_DOWN:
+            return INCHI_BOND_STEREO.SINGLE_1DOWN;
+        case MoleculeTable.WEDGE_EITHER:
+            return INCHI_BOND_STEREO.SINGLE_1EITHER;
+        case MoleculeTable.DOUBLE_EITHER:
+            return INCHI_BOND_STEREO.DOUBLE_EITHER;
+        default:
+            return INCHI_BOND_STEREO.NONE;
+        }
+    }
+
+    /**
+     * Adds tetrahedral stereo for the table's atom parities. Neighbours go
+     * in table order, except that molfiles rank hydrogen highest wherever it
+     * is, so a hydrogen atom goes last, as does the atom itself standing for
+     * an implicit hydrogen or lone pair. InChI's parity is that seen from the first
+     * neighbour rather than towards the last, so molfile odd is InChI even.
+     */
+    private void addParities(MoleculeTable table, JniInchiAtom[] iatoms) {
+        int[] counts = new int[iatoms.length];
+        for (int i = 0; i < table.getBondCount(); i++) {
+            counts[table.bondAtoms0[i]]++;
+            counts[table.bondAtoms1[i]]++;
+        }
+        int[][] neighbours = new int[iatoms.length][];
+        for (int i = 0; i < iatoms.length; i++) {
+            neighbours[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < table.getBondCount(); i++) {
+            int atom0 = table.bondAtoms0[i];
+            int atom1 = table.bondAtoms1[i];
+            neighbours[atom0][counts[atom0]++] = atom1;
+            neighbours[atom1][counts[atom1]++] = atom0;
+        }
+        JniInchiAtom[] refAtoms = new JniInchiAtom[4];
+        for (int i = 0; i < iatoms.length; i++) {
+            INCHI_PARITY parity;
+            switch (table.parities[i]) {
+            case MoleculeTable.PARITY_ODD:
+                parity = INCHI_PARITY.EVEN;
+                break;
+            case MoleculeTable.PARITY_EVEN:
+                parity = INCHI_PARITY.ODD;
+                break;
+            case MoleculeTable.PARITY_EITHER:
+                parity = INCHI_PARITY.UNKNOWN;
+                break;
+            default:
+                continue;
+            }
+            int[] around = neighbours[i];
+            if (around.length < 3 || around.length > 4) {
+                continue;
+            }
+            Arrays.sort(around);
+            int heavy = 0;
+            int[] ordered = new int[around.length];
+            for (int neighbour : around) {
+                if (!isHydrogen(table.elements[neighbour])) {
+                    ordered[heavy++] = neighbour;
+                }
+            }
+            for (int neighbour : around) {
+                if (isHydrogen(table.elements[neighbour])) {
+                    ordered[heavy++] = neighbour;
+                }
+            }
+            around = ordered;
+            for (int j = 0; j < 4; j++) {
+                refAtoms[j] = j < around.length ? iatoms[around[j]] : iatoms[i];
+            }
+            input.addStereo0D(JniInchiStereo0D.createNewTetrahedralStereo0D(iatoms[i],
+                    refAtoms[0], refAtoms[1], refAtoms[2], refAtoms[3], parity));
+        }
+    }
+
+    private static boolean isHydrogen(String element) {
+        return "H".equals(element) || "D".equals(element) || "T".equals(element);
+    }
+
+    /**
+     * @return radical for a spin multiplicity, or null if unsupported
+     */
+    private static INCHI_RADICAL toRadical(int spinMultiplicity) {
+        switch (spinMultiplicity) {
+        case 0:
+            return INCHI_RADICAL.NONE;
+        case 1:
+            return INCHI_RADICAL.SINGLET;
+        case 2:
+            return INCHI_RADICAL.DOUBLET;
+        case 3:
+            return INCHI_RADICAL.TRIPLET;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Looks up four atom references.
+     *
+     * @return false if there are not four references or one is unknown
+     */
+    private static boolean resolve(String[] refs, AtomIndex index,
+            JniInchiAtom[] iatoms, JniInchiAtom[] resolved) {
+        if (refs == null || refs.length != 4) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            int atom = index.get(refs[i]);
+            if (atom < 0) {
+                return false;
+            }
+            resolved[i] = iatoms[atom];
+        }
+        return true;
     }
 
     private boolean optionsContains(ProcessingOptions option) {
@@ -434,32 +933,76 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
     /**
      * Adds CMLIdentifier containing InChI to specified element.
      *
+     * <p>
+     * With {@link ProcessingOptions#INCREMENTAL}, any InChI, InChIKey and
+     * stamp identifiers already in the element are removed first, and the
+     * InChI is followed by the InChIKey, if it was asked for or has been
+     * calculated, and by a stamp. If the result was read from the molecule's
+     * own identifiers, the molecule is left as it is.
+     *
      * @param element
      * @throws RuntimeException
      */
     public void appendToElement(CMLElement element) {
-        if (output.getInchi() == null) {
-            throw new RuntimeException("Failed to generate InChI");
+        if (getInchi() == null) {
+            throw new RuntimeException("Failed to generate InChI"
+                    + (preInChiProblem == null ? "" : ": " + preInChiProblem));
+        }
+        boolean incremental = optionsContains(ProcessingOptions.INCREMENTAL);
+        if (incremental) {
+            if (stored && element == molecule) {
+                return;
+            }
+            Elements identifiers = element.getChildElements("identifier", CMLConstants.CML_NS);
+            for (int i = 0; i < identifiers.size(); i++) {
+                String convention = identifiers.get(i).getAttributeValue("convention");
+                if (CML_INCHI_CONVENTION.equals(convention) || INCHIKEY_CONVENTION.equals(convention)
+                        || InChIStamp.CONVENTION.equals(convention)) {
+                    element.removeChild(identifiers.get(i));
+                }
+            }
         }
 
-        CMLIdentifier identifier = new CMLIdentifier();
-        identifier.setConvention(CML_INCHI_CONVENTION);
-        identifier.appendChild(new Text(output.getInchi()));
+        element.appendChild(createIdentifier(CML_INCHI_CONVENTION, result.getInchi()));
+        if (incremental) {
+            if (inchiKey != null || optionsContains(ProcessingOptions.INCHI_KEY)) {
+                element.appendChild(createIdentifier(INCHIKEY_CONVENTION, getInchiKey()));
+            }
+            element.appendChild(createIdentifier(InChIStamp.CONVENTION, getStamp().toString()));
+        }
+    }
 
-        element.appendChild(identifier);
+    private static CMLIdentifier createIdentifier(String convention, String value) {
+        CMLIdentifier identifier = new CMLIdentifier();
+        identifier.setConvention(convention);
+        identifier.appendChild(new Text(value));
+        return identifier;
     }
 
     /**
      * Gets return status from InChI process. OKAY and WARNING indicate InChI
      * has been generated, in all other cases InChI generation has failed.
      *
-     * @return INCHI_RET
+     * @return INCHI_RET, or null if a problem stopped the molecule reaching
+     *         InChI or InChI running to the end (see
+     *         {@link #getPreInChiProblem()})
      */
     public INCHI_RET getReturnStatus() {
+        return outcome().getReturnStatus();
+    }
+
+    /**
+     * @return the result, or for a molecule stopped by a problem one with
+     *         nothing but the problem
+     */
+    private InChIResult outcome() {
         lazyGenerate();
-        return (output.getReturnStatus());
+        return preInChiProblem == null ? result : InChIResult.forProblem(preInChiProblem);
     }
     
+    /**
+     * @return true if the return status is OKAY or WARNING
+     */
     public boolean isOK() {
     	INCHI_RET ret = getReturnStatus();
     	if (INCHI_RET.OKAY.equals(ret) || INCHI_RET.WARNING.equals(ret)){
@@ -472,41 +1015,120 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
     /**
      * Gets generated InChI string.
      *
-     * @return string
+     * @return string, or null if none was generated, as after a problem
+     * @throws IllegalStateException if only the status was requested
      */
     public String getInchi() {
-        lazyGenerate();
-        return (output.getInchi());
+        InChIResult outcome = outcome();
+        checkRequested(InChIResult.Detail.INCHI, "InChI");
+        return (outcome.getInchi());
     }
 
     /**
-     * Gets generated InChI string.
+     * Gets the InChIKey of the generated InChI. It is calculated on first
+     * call, through the factory's result cache and store if set.
+     *
+     * @return key, or null if no InChI was generated
+     * @throws RuntimeException if InChI cannot hash the InChI
+     */
+    public String getInchiKey() {
+        if (inchiKey == null) {
+            String inchi = getInchi();
+            if (inchi == null) {
+                return null;
+            }
+            inchiKey = engine.getInchiKeys(new String[] { inchi })[0];
+            if (inchiKey == null) {
+                throw new RuntimeException("Failed to generate InChIKey for " + inchi);
+            }
+        }
+        return inchiKey;
+    }
+
+    /**
+     * Gets the outcome as an immutable result that holds no reference to
+     * this generator or its molecule. The InChIKey is included if it has
+     * been calculated or the {@link ProcessingOptions#INCHI_KEY} option is
+     * set, and the stamp if the {@link ProcessingOptions#INCREMENTAL} option
+     * is set.
+     *
+     * @return result
+     * @throws RuntimeException
+     */
+    public InChIResult getResult() {
+        InChIResult outcome = outcome();
+        if (preInChiProblem != null) {
+            return outcome;
+        }
+        if (inchiKey == null && optionsContains(ProcessingOptions.INCHI_KEY)
+                && result.isOK() && result.getInchi() != null) {
+            getInchiKey();
+        }
+        InChIResult withKey = inchiKey == null ? result : result.withInchiKey(inchiKey);
+        if (optionsContains(ProcessingOptions.INCREMENTAL) && result.getInchi() != null) {
+            return withKey.withStamp(getStamp());
+        }
+        return withKey;
+    }
+
+    /**
+     * Gets generated AuxInfo string.
      *
-     * @return string
+     * @return string, or null after a problem
+     * @throws IllegalStateException if only the InChI or status was requested
      */
     public String getAuxInfo() {
-        lazyGenerate();
-        return (output.getAuxInfo());
+        InChIResult outcome = outcome();
+        checkRequested(InChIResult.Detail.FULL, "AuxInfo");
+        return (outcome.getAuxInfo());
     }
 
     /**
      * Gets generated (error/warning) messages.
      *
-     * @return string
+     * @return string, or null after a problem
+     * @throws IllegalStateException if only the InChI or status was requested
      */
     public String getMessage() {
-        lazyGenerate();
-        return (output.getMessage());
+        InChIResult outcome = outcome();
+        checkRequested(InChIResult.Detail.FULL, "Message");
+        return (outcome.getMessage());
     }
 
     /**
      * Gets generated log.
      *
-     * @return string
+     * @return string, or null after a problem
+     * @throws IllegalStateException if only the InChI or status was requested
      */
     public String getLog() {
-        lazyGenerate();
-        return (output.getLog());
+        InChIResult outcome = outcome();
+        checkRequested(InChIResult.Detail.FULL, "Log");
+        return (outcome.getLog());
+    }
+
+    /**
+     * Sets the time InChI may take for this generator's molecule, including
+     * any wait for a worker process; 0 for no limit. Timeouts need worker
+     * processes, which can be stopped; a call into the library in this JVM
+     * cannot.
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout: " + timeout);
+        }
+        this.timeout = timeout == 0 ? 0 : Math.max(1, unit.toMillis(timeout));
+    }
+
+    /**
+     * @param unit
+     * @return timeout in the given unit, 0 for no limit
+     */
+    public long getTimeout(TimeUnit unit) {
+        return unit.convert(timeout, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -530,6 +1152,14 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
         this.processingOptions = processingOptions;
     }
 
+    /**
+     * Puts back the default processing options, for a generator handed to
+     * another caller.
+     */
+    void resetProcessingOptions() {
+        this.processingOptions = DEFAULT_PROCESSING_OPTIONS;
+    }
+
     /**
      * Has this generator been used (or is it safe to call generate?).
      *
@@ -541,8 +1171,8 @@ public class InChIGenerator implements EuclidConstants, InChIGeneratorInterface
     }
 
     /**
-     * If a problem occurred before we got to InChI it will be here, else this
-     * will return null.
+     * If a problem occurred before we got to InChI, or InChI ran out of time,
+     * it will be here, else this will return null.
      *
      * @return The problem
      * @since 5.4
@@ -16,7 +16,27 @@
 
 package org.xmlcml.cml.inchi;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import net.sf.jniinchi.INCHI_OPTION;
 import net.sf.jniinchi.JniInchiWrapper;
@@ -48,6 +68,36 @@ import org.xmlcml.cml.element.CMLMolecule;
  */
 public class InChIGeneratorFactory implements InChIGeneratorFactoryInterface {
     
+    private ExecutorService extractionExecutor;
+    
+    private volatile InChIEngine engine = NativeInChIEngine.INSTANCE;
+    
+    private InChIWorkerPool workerPool;
+    
+    private InChIWorkerPool heavyWorkerPool;
+    
+    private InChILanes lanes;
+    
+    private volatile long timeout;
+    
+    private volatile InChIMetricsListener metricsListener;
+    
+    private ObjectName metricsName;
+    
+    private InChIResultCache resultCache;
+    
+    private InChIStructureCache structureCache;
+    
+    private InChIResultStore resultStore;
+    
+    private final ThreadLocal<Map<InChIOptions, InChIGenerator>> pooledGenerators =
+            new ThreadLocal<Map<InChIOptions, InChIGenerator>>() {
+        @Override
+        protected Map<InChIOptions, InChIGenerator> initialValue() {
+            return new HashMap<InChIOptions, InChIGenerator>();
+        }
+    };
+    
     /**
      * <p>Constructor for InChIGeneratorFactory. Ensures that native code
      * required for InChI/Structure interconversion is available, otherwise
@@ -63,6 +113,265 @@ public class InChIGeneratorFactory implements InChIGeneratorFactoryInterface {
         }
     }
     
+    /**
+     * <p>Moves InChI calculation out of this JVM into a pool of child JVMs,
+     * each with its own copy of the native library. JniInchiWrapper only lets
+     * one thread at a time into the library, so this is the way to use more
+     * than one core for the native part of the work. Molecules and InChIs
+     * are sent to the workers over pipes; generators and structure
+     * generators obtained from this factory afterwards use the pool.
+     * 
+     * <p>Any pool already running is stopped first. If lanes are set with
+     * heavy workers (see {@link InChILanes#setHeavyWorkers(int)}), that many
+     * of the workers are kept for heavy molecules.
+     * 
+     * @param workers       number of child JVMs to start.
+     * @throws RuntimeException if the workers cannot be started
+     */
+    public synchronized void startWorkers(int workers) {
+        stopWorkers();
+        int heavyWorkers = lanes == null ? 0 : lanes.getHeavyWorkers();
+        if (heavyWorkers > 0 && heavyWorkers < workers) {
+            heavyWorkerPool = new InChIWorkerPool(heavyWorkers);
+            try {
+                workerPool = new InChIWorkerPool(workers - heavyWorkers);
+            } catch (RuntimeException re) {
+                heavyWorkerPool.close();
+                heavyWorkerPool = null;
+                throw re;
+            }
+        } else {
+            workerPool = new InChIWorkerPool(workers);
+        }
+        updateEngine();
+    }
+    
+    /**
+     * <p>Stops the worker processes started by {@link #startWorkers(int)}, if
+     * any, and goes back to calling the library in this JVM. Calls still
+     * running in the workers fail.
+     */
+    public synchronized void stopWorkers() {
+        if (workerPool != null) {
+            InChIWorkerPool pool = workerPool;
+            InChIWorkerPool heavyPool = heavyWorkerPool;
+            workerPool = null;
+            heavyWorkerPool = null;
+            updateEngine();
+            pool.close();
+            if (heavyPool != null) {
+                heavyPool.close();
+            }
+        }
+    }
+    
+    /**
+     * @return number of worker processes, 0 if InChI runs in this JVM
+     */
+    public synchronized int getWorkerCount() {
+        return (workerPool == null ? 0 : workerPool.size())
+                + (heavyWorkerPool == null ? 0 : heavyWorkerPool.size());
+    }
+    
+    /**
+     * <p>Sorts InChI calls from generators obtained from this factory
+     * afterwards into a light and a heavy lane by molecule size, each with
+     * its own limits. Cached results are returned without entering a lane.
+     * The lanes are read when set; to change them, set them again. A change
+     * to the heavy workers takes effect at the next
+     * {@link #startWorkers(int)}.
+     * 
+     * @param lanes         lanes to use, or null for none.
+     */
+    public synchronized void setLanes(InChILanes lanes) {
+        this.lanes = lanes;
+        updateEngine();
+    }
+    
+    /**
+     * @return lanes, or null if none
+     */
+    public synchronized InChILanes getLanes() {
+        return lanes;
+    }
+    
+    /**
+     * <p>Sets a cache of InChI results consulted by every generator obtained
+     * from this factory afterwards. A cache may be shared between factories.
+     * 
+     * @param resultCache   cache to use, or null for none.
+     */
+    public synchronized void setResultCache(InChIResultCache resultCache) {
+        this.resultCache = resultCache;
+        updateEngine();
+    }
+    
+    /**
+     * @return result cache, or null if none
+     */
+    public synchronized InChIResultCache getResultCache() {
+        return resultCache;
+    }
+    
+    /**
+     * <p>Sets a cache of decoded InChIs consulted by every structure generator
+     * obtained from this factory afterwards. A cache may be shared between
+     * factories.
+     * 
+     * @param structureCache   cache to use, or null for none.
+     */
+    public synchronized void setStructureCache(InChIStructureCache structureCache) {
+        this.structureCache = structureCache;
+        updateEngine();
+    }
+    
+    /**
+     * @return structure cache, or null if none
+     */
+    public synchronized InChIStructureCache getStructureCache() {
+        return structureCache;
+    }
+    
+    /**
+     * <p>Sets an on-disk store of InChI results consulted by every generator
+     * obtained from this factory afterwards, after the result cache (if any)
+     * and before InChI itself. New results are added to the store, so a job
+     * restarted with the same store file does not recompute them. The store
+     * is not closed by the factory.
+     * 
+     * @param resultStore   store to use, or null for none.
+     */
+    public synchronized void setResultStore(InChIResultStore resultStore) {
+        this.resultStore = resultStore;
+        updateEngine();
+    }
+    
+    /**
+     * @return result store, or null if none
+     */
+    public synchronized InChIResultStore getResultStore() {
+        return resultStore;
+    }
+    
+    private void updateEngine() {
+        InChIEngine engine;
+        if (workerPool != null) {
+            workerPool.setListener(metricsListener);
+            if (heavyWorkerPool != null) {
+                heavyWorkerPool.setListener(metricsListener);
+            }
+            engine = workerPool;
+        } else if (metricsListener != null) {
+            engine = new NativeInChIEngine(metricsListener);
+        } else {
+            engine = NativeInChIEngine.INSTANCE;
+        }
+        if (lanes != null) {
+            engine = new LanedInChIEngine(lanes, engine,
+                    heavyWorkerPool == null ? engine : heavyWorkerPool);
+        }
+        if (resultCache != null || resultStore != null || structureCache != null) {
+            engine = new CachedInChIEngine(resultCache, resultStore, structureCache, engine);
+        }
+        this.engine = engine;
+    }
+    
+    /**
+     * <p>Sets the time InChI may take for each molecule in generators
+     * obtained from this factory afterwards, including the batch methods;
+     * 0 for no limit. A worker process that overruns is killed and started
+     * again, and the molecule gets the problem {@link Problems#TIMEOUT}.
+     * Timeouts need worker processes (see {@link #startWorkers(int)}).
+     * 
+     * @param timeout
+     * @param unit
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout: " + timeout);
+        }
+        this.timeout = timeout == 0 ? 0 : Math.max(1, unit.toMillis(timeout));
+    }
+    
+    /**
+     * @param unit
+     * @return timeout in the given unit, 0 for no limit
+     */
+    public long getTimeout(TimeUnit unit) {
+        return unit.convert(timeout, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * <p>Sets a listener told the time taken by each phase of InChI
+     * generation and decoding, and the outcome of each call, for generators
+     * and structure generators obtained from this factory afterwards. With
+     * no listener (the default) nothing is timed.
+     * 
+     * @param listener      listener to use, or null for none.
+     * @see #enableMetrics(String)
+     */
+    public synchronized void setMetricsListener(InChIMetricsListener listener) {
+        this.metricsListener = listener;
+        updateEngine();
+    }
+    
+    /**
+     * @return metrics listener, or null if none
+     */
+    public InChIMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+    
+    /**
+     * <p>Starts collecting metrics in a new {@link InChIMetrics}, set as the
+     * metrics listener in place of any other, and registers it with the
+     * platform MBean server as
+     * <code>org.xmlcml.cml.inchi:type=InChIMetrics,name=</code><i>name</i>.
+     * Metrics already registered by this factory are unregistered first.
+     * 
+     * @param name          name to register under.
+     * @return the metrics
+     * @throws RuntimeException if the MBean cannot be registered
+     */
+    public synchronized InChIMetrics enableMetrics(String name) {
+        disableMetrics();
+        InChIMetrics metrics = new InChIMetrics();
+        try {
+            ObjectName objectName = new ObjectName("org.xmlcml.cml.inchi:type=InChIMetrics,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            metricsName = objectName;
+        } catch (JMException jme) {
+            throw new RuntimeException("Failed to register InChI metrics: " + jme.getMessage(), jme);
+        }
+        setMetricsListener(metrics);
+        return metrics;
+    }
+    
+    /**
+     * <p>Unregisters the metrics registered by {@link #enableMetrics(String)},
+     * if any, and stops collecting them.
+     */
+    public synchronized void disableMetrics() {
+        if (metricsName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(metricsName);
+            } catch (JMException jme) {
+                // already gone
+            }
+            metricsName = null;
+            setMetricsListener(null);
+        }
+    }
+    
+    private InChIGenerator configure(InChIGenerator gen) {
+        gen.engine = engine;
+        gen.listener = metricsListener;
+        gen.setTimeout(timeout, TimeUnit.MILLISECONDS);
+        return gen;
+    }
+    
     /**
      * <p>Gets InChI generator for CMLMolecule.
      * 
@@ -72,7 +381,7 @@ public class InChIGeneratorFactory implements InChIGeneratorFactoryInterface {
       * 
      */
     public InChIGenerator getInChIGenerator(CMLMolecule molecule) {
-        return(new InChIGenerator(molecule));
+        return(configure(new InChIGenerator(molecule, InChIOptions.NONE)));
     }
     
     /**
@@ -84,7 +393,7 @@ public class InChIGeneratorFactory implements InChIGeneratorFactoryInterface {
      * @throws RuntimeException
      */
     public InChIGenerator getInChIGenerator(CMLMolecule molecule, String options) {
-        return(new InChIGenerator(molecule, options));
+        return(configure(new InChIGenerator(molecule, InChIOptions.valueOf(options))));
     }
     
     /**
@@ -96,7 +405,353 @@ public class InChIGeneratorFactory implements InChIGeneratorFactoryInterface {
      * @throws RuntimeException
      */
     public InChIGenerator getInChIGenerator(CMLMolecule molecule, List<INCHI_OPTION> options) {
-        return(new InChIGenerator(molecule, options));
+        return(configure(new InChIGenerator(molecule, InChIOptions.valueOf(options))));
+    }
+    
+    /**
+     * <p>Gets InChI generator for CMLMolecule.
+     * 
+     * @param molecule     CMLMolecule to generate InChI for.
+     * @param options      Options for InChI generation, parsed once and
+     *                     shared between generators.
+     * @return Inchi generator
+     * @throws RuntimeException
+     */
+    public InChIGenerator getInChIGenerator(CMLMolecule molecule, InChIOptions options) {
+        return(configure(new InChIGenerator(molecule, options)));
+    }
+    
+    /**
+     * <p>Gets InChI generator for a table of atoms and bonds. This skips
+     * building a CMLMolecule for producers that hold structures as arrays;
+     * the InChI is the same as for the equivalent molecule.
+     * 
+     * @param table        atoms and bonds to generate InChI for.
+     * @param options      Options for InChI generation.
+     * @return Inchi generator
+     * @throws RuntimeException
+     */
+    public InChIGenerator getInChIGenerator(MoleculeTable table, InChIOptions options) {
+        return(configure(new InChIGenerator(table, options)));
+    }
+    
+    /**
+     * <p>Gets InChI generator for a table of atoms and bonds, with no
+     * options.
+     * 
+     * @param table        atoms and bonds to generate InChI for.
+     * @return Inchi generator
+     * @throws RuntimeException
+     */
+    public InChIGenerator getInChIGenerator(MoleculeTable table) {
+        return(configure(new InChIGenerator(table, InChIOptions.NONE)));
+    }
+    
+    /**
+     * <p>Gets this thread's reusable InChI generator, reset to the given
+     * molecule and the default processing options. Each thread has one generator per set of options, so a
+     * long-running worker can stream molecules through it instead of
+     * allocating a generator per molecule.
+     * 
+     * <p>The generator, and everything obtained from it, belongs to the
+     * calling thread and is only valid until that thread's next call with
+     * the same options. Use {@link #getInChIGenerator(CMLMolecule, InChIOptions)}
+     * for a generator of its own.
+     * 
+     * @param molecule     CMLMolecule to generate InChI for.
+     * @param options      Options for InChI generation.
+     * @return Inchi generator
+     * @throws RuntimeException
+     */
+    public InChIGenerator getPooledInChIGenerator(CMLMolecule molecule, InChIOptions options) {
+        Map<InChIOptions, InChIGenerator> pool = pooledGenerators.get();
+        InChIGenerator gen = pool.get(options);
+        if (gen == null) {
+            gen = new InChIGenerator(molecule, options);
+            pool.put(options, gen);
+        } else {
+            gen.reset(molecule);
+            // the last caller may have changed them
+            gen.resetProcessingOptions();
+        }
+        return(configure(gen));
+    }
+    
+    /**
+     * <p>Gets this thread's reusable InChI generator with no options.
+     * 
+     * @param molecule     CMLMolecule to generate InChI for.
+     * @return Inchi generator
+     * @throws RuntimeException
+     * @see #getPooledInChIGenerator(CMLMolecule, InChIOptions)
+     */
+    public InChIGenerator getPooledInChIGenerator(CMLMolecule molecule) {
+        return getPooledInChIGenerator(molecule, InChIOptions.NONE);
+    }
+    
+    /**
+     * <p>Generates InChIs for a batch of molecules.
+     * 
+     * @param molecules     CMLMolecules to generate InChIs for.
+     * @return generators, already generated, in the order of the input
+     * @throws RuntimeException
+     * @see #generateAll(Collection, String)
+     */
+    public List<InChIGenerator> generateAll(Collection<CMLMolecule> molecules) {
+        return generateAll(molecules, InChIOptions.NONE);
+    }
+    
+    /**
+     * <p>Generates InChIs for a batch of molecules.
+     * 
+     * <p>Reading each CMLMolecule into the InChI input runs in parallel on
+     * the extraction executor. The native library can only be entered by one
+     * thread at a time, so the calling thread takes the extracted inputs off
+     * the queue in input order and passes them to InChI while later molecules
+     * are still being extracted. With worker processes running (see
+     * {@link #startWorkers(int)}) the InChI calls are made from the
+     * extraction threads as well, so that all the workers are kept busy.
+     * 
+     * @param molecules     CMLMolecules to generate InChIs for.
+     * @param options       String of options for InChI generation.
+     * @return generators, already generated, in the order of the input
+     * @throws RuntimeException
+     */
+    public List<InChIGenerator> generateAll(Collection<CMLMolecule> molecules, String options) {
+        return generateAll(molecules, InChIOptions.valueOf(options));
+    }
+    
+    /**
+     * <p>Generates InChIs for a batch of molecules.
+     * 
+     * @param molecules     CMLMolecules to generate InChIs for.
+     * @param options       Options for InChI generation.
+     * @return generators, already generated, in the order of the input
+     * @throws RuntimeException
+     * @see #generateAll(Collection, String)
+     */
+    public List<InChIGenerator> generateAll(Collection<CMLMolecule> molecules, InChIOptions options) {
+        ExecutorService executor = getExtractionExecutor();
+        boolean parallel = engine.isParallel();
+        List<Future<InChIGenerator>> queue = new ArrayList<Future<InChIGenerator>>(molecules.size());
+        for (CMLMolecule molecule : molecules) {
+            queue.add(submit(executor, getInChIGenerator(molecule, options), parallel));
+        }
+        List<InChIGenerator> generators = new ArrayList<InChIGenerator>(queue.size());
+        try {
+            for (Future<InChIGenerator> future : queue) {
+                InChIGenerator gen = awaitExtraction(future);
+                if (!gen.isGenerated()) {
+                    gen.generateExtracted();
+                }
+                generators.add(gen);
+            }
+        } finally {
+            for (Future<InChIGenerator> future : queue) {
+                future.cancel(false);
+            }
+        }
+        return generators;
+    }
+    
+    /**
+     * <p>Generates InChIs for a stream of molecules, passing each result to
+     * the sink instead of returning generators.
+     * 
+     * <p>Work is shared out as by {@link #generateAll(Collection, String)},
+     * but only a bounded number of molecules is read ahead of the sink, and
+     * each generator is dropped once its result has been passed on. Heap use
+     * therefore does not grow with the size of the job, so results for
+     * millions of molecules can be written out as they arrive, the molecules
+     * themselves being read lazily from the Iterable.
+     * 
+     * @param molecules     CMLMolecules to generate InChIs for; iterated on
+     *                      the calling thread.
+     * @param options       Options for InChI generation.
+     * @param processingOptions  processing options for each generator, or
+     *                      null for the defaults.
+     * @param sink          receives one result per molecule, in input order,
+     *                      on the calling thread.
+     * @throws RuntimeException
+     */
+    public void generateAll(Iterable<CMLMolecule> molecules, InChIOptions options,
+            ProcessingOptions[] processingOptions, InChIResultSink sink) {
+        generateLazily(readers(molecules.iterator()), options, processingOptions, sink);
+    }
+    
+    /**
+     * <p>Generates InChIs for the records of an SD file, passing each result
+     * to the sink, as
+     * {@link #generateAll(Iterable, InChIOptions, ProcessingOptions[], InChIResultSink)}
+     * does for CMLMolecules. Records are split off on the calling thread
+     * and parsed into {@link MoleculeTable}s on the extraction threads.
+     * 
+     * @param records       records not yet read; read to the end
+     * @param options       Options for InChI generation.
+     * @param processingOptions  processing options for each generator, or
+     *                      null for the defaults.
+     * @param sink          receives one result per record, in file order,
+     *                      on the calling thread.
+     * @throws RuntimeException if a record cannot be read
+     */
+    public void generateAll(SDFReader records, InChIOptions options,
+            ProcessingOptions[] processingOptions, InChIResultSink sink) {
+        generateLazily(records.batches(), options, processingOptions, sink);
+    }
+    
+    /**
+     * @return Callables each returning one of the molecules, for
+     *         {@link #generateLazily(Iterator, InChIOptions, ProcessingOptions[], InChIResultSink)}
+     */
+    static Iterator<Callable<List<CMLMolecule>>> readers(final Iterator<CMLMolecule> molecules) {
+        return new Iterator<Callable<List<CMLMolecule>>>() {
+
+            public boolean hasNext() {
+                return molecules.hasNext();
+            }
+
+            public Callable<List<CMLMolecule>> next() {
+                final CMLMolecule molecule = molecules.next();
+                return new Callable<List<CMLMolecule>>() {
+                    public List<CMLMolecule> call() {
+                        return Collections.singletonList(molecule);
+                    }
+                };
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    /**
+     * As {@link #generateAll(Iterable, InChIOptions, ProcessingOptions[], InChIResultSink)},
+     * but the molecules come in batches, each read on an extraction thread
+     * by calling its Callable, so that parsing is shared out as well.
+     * 
+     * @param batches       readers of consecutive runs of CMLMolecules or
+     *                      MoleculeTables; iterated on the calling thread,
+     *                      called on the extraction threads.
+     */
+    void generateLazily(Iterator<? extends Callable<? extends List<?>>> batches,
+            InChIOptions options, ProcessingOptions[] processingOptions, InChIResultSink sink) {
+        ExecutorService executor = getExtractionExecutor();
+        boolean parallel = engine.isParallel();
+        int window = Math.max(4 * Runtime.getRuntime().availableProcessors(), 2 * getWorkerCount());
+        LinkedList<Future<List<InChIGenerator>>> queue = new LinkedList<Future<List<InChIGenerator>>>();
+        try {
+            while (true) {
+                while (queue.size() < window && batches.hasNext()) {
+                    queue.add(submit(executor, batches.next(), options, processingOptions, parallel));
+                }
+                if (queue.isEmpty()) {
+                    break;
+                }
+                for (InChIGenerator gen : awaitExtraction(queue.removeFirst())) {
+                    if (!gen.isGenerated()) {
+                        gen.generateExtracted();
+                    }
+                    sink.accept(gen.getResult());
+                }
+            }
+        } finally {
+            for (Future<List<InChIGenerator>> future : queue) {
+                future.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Queues extraction, and with worker processes the InChI call too.
+     */
+    private static Future<InChIGenerator> submit(ExecutorService executor,
+            final InChIGenerator gen, final boolean parallel) {
+        return executor.submit(new Callable<InChIGenerator>() {
+            public InChIGenerator call() {
+                gen.extract();
+                if (parallel) {
+                    gen.generateExtracted();
+                }
+                return gen;
+            }
+        });
+    }
+    
+    /**
+     * Queues reading a batch of molecules or tables and creating their generators,
+     * then as {@link #submit(ExecutorService, InChIGenerator, boolean)} for
+     * each.
+     */
+    private Future<List<InChIGenerator>> submit(ExecutorService executor,
+            final Callable<? extends List<?>> batch, final InChIOptions options,
+            final ProcessingOptions[] processingOptions, final boolean parallel) {
+        return executor.submit(new Callable<List<InChIGenerator>>() {
+            public List<InChIGenerator> call() throws Exception {
+                List<?> molecules = batch.call();
+                List<InChIGenerator> generators = new ArrayList<InChIGenerator>(molecules.size());
+                for (Object molecule : molecules) {
+                    InChIGenerator gen = molecule instanceof MoleculeTable
+                            ? getInChIGenerator((MoleculeTable) molecule, options)
+                            : getInChIGenerator((CMLMolecule) molecule, options);
+                    if (processingOptions != null) {
+                        gen.setProcessingOptions(processingOptions);
+                    }
+                    gen.extract();
+                    if (parallel) {
+                        gen.generateExtracted();
+                    }
+                    generators.add(gen);
+                }
+                return generators;
+            }
+        });
+    }
+    
+    private static <T> T awaitExtraction(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while extracting InChI input", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Failed to extract InChI input: " + cause.getMessage(), cause);
+        }
+    }
+    
+    /**
+     * <p>Gets the executor used to read molecules in {@link #generateAll}.
+     * Unless one has been set, a pool of daemon threads, one per available
+     * processor, is created on first use.
+     * 
+     * @return executor
+     */
+    public synchronized ExecutorService getExtractionExecutor() {
+        if (extractionExecutor == null) {
+            extractionExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "inchi-extraction");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return extractionExecutor;
+    }
+    
+    /**
+     * <p>Sets the executor used to read molecules in {@link #generateAll}.
+     * The caller remains responsible for shutting it down.
+     * 
+     * @param executor
+     */
+    public synchronized void setExtractionExecutor(ExecutorService executor) {
+        this.extractionExecutor = executor;
     }
     
     /**
@@ -107,7 +762,7 @@ public class InChIGeneratorFactory implements InChIGeneratorFactoryInterface {
      * @throws RuntimeException
      */
     public InChIToStructure getInChIToStructure(String inchi) {
-        return(new InChIToStructure(inchi));
+        return(new InChIToStructure(inchi, "", engine, metricsListener));
     }
     
     /**
@@ -119,7 +774,7 @@ public class InChIGeneratorFactory implements InChIGeneratorFactoryInterface {
      * @throws RuntimeException
      */
     public InChIToStructure getInChIToStructure(String inchi, String options) {
-        return(new InChIToStructure(inchi, options));
+        return(new InChIToStructure(inchi, options, engine, metricsListener));
     }
     
     /**
@@ -131,6 +786,21 @@ public class InChIGeneratorFactory implements InChIGeneratorFactoryInterface {
      * @throws RuntimeException
      */
     public InChIToStructure getInChIToStructure(String inchi, List<String> options) {
-        return(new InChIToStructure(inchi, options));
+        return(new InChIToStructure(inchi, InChIToStructure.toOptionString(options), engine, metricsListener));
+    }
+    
+    /**
+     * <p>Calculates InChIKeys for a batch of InChIs. Keys already in the
+     * result cache or store are not recalculated; the rest are passed to
+     * InChI in one call (to one worker if workers are running), rather than
+     * one call per InChI.
+     * 
+     * @param inchis        InChIs to hash.
+     * @return InChIKeys in the order of the InChIs, null for any that InChI
+     *         rejected.
+     * @throws RuntimeException
+     */
+    public List<String> inchiKeysFor(Collection<String> inchis) {
+        return Arrays.asList(engine.getInchiKeys(inchis.toArray(new String[inchis.size()])));
     }
 }
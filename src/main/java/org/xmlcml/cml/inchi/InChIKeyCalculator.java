@@ -0,0 +1,275 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>
+ * Calculates InChIKeys in Java, without the native library, so that it can
+ * be called from any number of threads at once.
+ *
+ * <p>
+ * The key is built as by the InChI library: the first block hashes the
+ * formula, connection, hydrogen and charge layers; the second hashes the
+ * remaining layers (stereo, isotopes, fixed hydrogens...), repeated if
+ * shorter than 255 characters. Both use SHA-256 with the result encoded
+ * three letters per 14 bits. Then come the standard/non-standard flag, the
+ * version letter, and the protonation flag taken from the /p layer.
+ */
+public final class InChIKeyCalculator {
+
+    private static final String PREFIX = "InChI=1";
+
+    private static final int MINOR_REPEAT_LENGTH = 255;
+
+    private static final int BUFFER_SIZE = 256;
+
+    /**
+     * 16384 triplets of letters: AAA to ZZZ without those starting with E
+     * and without TAA to TTV.
+     */
+    private static final char[] TRIPLETS = new char[3 * 16384];
+
+    /**
+     * 512 pairs of letters: AA to TR.
+     */
+    private static final char[] DUBLETS = new char[2 * 512];
+
+    static {
+        int n = 0;
+        for (char a = 'A'; a <= 'Z'; a++) {
+            if (a == 'E') {
+                continue;
+            }
+            for (char b = 'A'; b <= 'Z'; b++) {
+                for (char c = 'A'; c <= 'Z'; c++) {
+                    if (a == 'T' && (b < 'T' || (b == 'T' && c <= 'V'))) {
+                        continue;
+                    }
+                    TRIPLETS[n++] = a;
+                    TRIPLETS[n++] = b;
+                    TRIPLETS[n++] = c;
+                }
+            }
+        }
+        n = 0;
+        for (char a = 'A'; n < DUBLETS.length; a++) {
+            for (char b = 'A'; b <= 'Z' && n < DUBLETS.length; b++) {
+                DUBLETS[n++] = a;
+                DUBLETS[n++] = b;
+            }
+        }
+    }
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private InChIKeyCalculator() {
+    }
+
+    /**
+     * @param inchi     standard or non-standard InChI, version 1
+     * @return InChIKey
+     * @throws IllegalArgumentException if the string is not an InChI
+     */
+    public static String getInchiKey(CharSequence inchi) {
+        int length = inchi.length();
+        if (!startsWith(inchi, PREFIX)) {
+            throw new IllegalArgumentException("Not an InChI: " + inchi);
+        }
+        int start = PREFIX.length();
+        boolean standard = start < length && inchi.charAt(start) == 'S';
+        if (standard) {
+            start++;
+        }
+        if (start >= length || inchi.charAt(start) != '/') {
+            throw new IllegalArgumentException("Not an InChI: " + inchi);
+        }
+        start++;
+
+        // main layers: formula, then /c, /h and /q
+        int pos = indexOf(inchi, '/', start);
+        int mainEnd = pos;
+        while (pos + 1 < length && isMainLayer(inchi.charAt(pos + 1))) {
+            pos = indexOf(inchi, '/', pos + 1);
+            mainEnd = pos;
+        }
+        int protons = 0;
+        if (pos + 1 < length && inchi.charAt(pos + 1) == 'p') {
+            int end = indexOf(inchi, '/', pos + 1);
+            protons = parseProtons(inchi, pos + 2, end);
+            pos = end;
+        }
+        int minorStart = Math.min(pos, length);
+
+        State state = STATE.get();
+        char[] key = state.key;
+        encodeMain(state.digest(inchi, start, mainEnd, 1), key);
+        key[14] = '-';
+        int minorLength = length - minorStart;
+        int repeat = minorLength > 0 && minorLength < MINOR_REPEAT_LENGTH ? 2 : 1;
+        encodeMinor(state.digest(inchi, minorStart, length, repeat), key);
+        key[23] = standard ? 'S' : 'N';
+        key[24] = 'A';
+        key[25] = '-';
+        key[26] = protonationFlag(protons);
+        return new String(key);
+    }
+
+    private static boolean isMainLayer(char c) {
+        return c == 'c' || c == 'h' || c == 'q';
+    }
+
+    private static char protonationFlag(int protons) {
+        if (protons < -12 || protons > 12) {
+            return 'A';
+        }
+        return (char) ('N' + protons);
+    }
+
+    private static int parseProtons(CharSequence s, int start, int end) {
+        int total = 0;
+        int value = 0;
+        int sign = 1;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '-') {
+                sign = -1;
+            } else if (c == '+') {
+                sign = 1;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else if (c == ';') {
+                total += sign * value;
+                value = 0;
+                sign = 1;
+            } else {
+                throw new IllegalArgumentException("Bad protonation layer in InChI: " + s);
+            }
+        }
+        return total + sign * value;
+    }
+
+    private static void encodeMain(byte[] d, char[] key) {
+        int a0 = d[0] & 0xff, a1 = d[1] & 0xff, a2 = d[2] & 0xff, a3 = d[3] & 0xff;
+        int a4 = d[4] & 0xff, a5 = d[5] & 0xff, a6 = d[6] & 0xff, a7 = d[7] & 0xff;
+        int a8 = d[8] & 0xff;
+        triplet(a0 | (a1 & 0x3f) << 8, key, 0);
+        triplet(((a1 & 0xc0) | a2 << 8 | (a3 & 0x0f) << 16) >> 6, key, 3);
+        triplet(((a3 & 0xf0) | a4 << 8 | (a5 & 0x03) << 16) >> 4, key, 6);
+        triplet(((a5 & 0xfc) | a6 << 8) >> 2, key, 9);
+        dublet(a7 | (a8 & 0x01) << 8, key, 12);
+    }
+
+    private static void encodeMinor(byte[] d, char[] key) {
+        int a0 = d[0] & 0xff, a1 = d[1] & 0xff, a2 = d[2] & 0xff, a3 = d[3] & 0xff;
+        int a4 = d[4] & 0xff;
+        triplet(a0 | (a1 & 0x3f) << 8, key, 15);
+        triplet(((a1 & 0xc0) | a2 << 8 | (a3 & 0x0f) << 16) >> 6, key, 18);
+        dublet(a3 >> 4 | (a4 & 0x1f) << 4, key, 21);
+    }
+
+    private static void triplet(int value, char[] key, int offset) {
+        System.arraycopy(TRIPLETS, 3 * value, key, offset, 3);
+    }
+
+    private static void dublet(int value, char[] key, int offset) {
+        System.arraycopy(DUBLETS, 2 * value, key, offset, 2);
+    }
+
+    private static boolean startsWith(CharSequence s, String prefix) {
+        if (s.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, char c, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return s.length();
+    }
+
+    /**
+     * Per-thread digest and buffers, so that a call allocates only the
+     * returned string.
+     */
+    private static final class State {
+
+        private final MessageDigest sha256;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private final byte[] hash = new byte[32];
+
+        private final char[] key = new char[27];
+
+        State() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new RuntimeException("SHA-256 not available", nsae);
+            }
+        }
+
+        /**
+         * @return SHA-256 of chars start..end of s, repeated the given
+         *         number of times
+         */
+        byte[] digest(CharSequence s, int start, int end, int repeat) {
+            for (int r = 0; r < repeat; r++) {
+                int n = 0;
+                for (int i = start; i < end; i++) {
+                    char c = s.charAt(i);
+                    if (c > 0x7f) {
+                        sha256.reset();
+                        throw new IllegalArgumentException("Not an InChI: " + s);
+                    }
+                    buffer[n++] = (byte) c;
+                    if (n == buffer.length) {
+                        sha256.update(buffer, 0, n);
+                        n = 0;
+                    }
+                }
+                sha256.update(buffer, 0, n);
+            }
+            try {
+                sha256.digest(hash, 0, hash.length);
+            } catch (DigestException de) {
+                throw new RuntimeException("SHA-256 failed", de);
+            }
+            return hash;
+        }
+
+    }
+
+}
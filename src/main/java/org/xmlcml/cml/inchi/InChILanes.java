@@ -0,0 +1,154 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+/**
+ * <p>
+ * Splits InChI calls into a light and a heavy lane by molecule size, so that
+ * a few very large or ring-rich molecules cannot hold up the many small ones
+ * behind them. Set on a factory with
+ * {@link InChIGeneratorFactory#setLanes(InChILanes)}.
+ *
+ * <p>
+ * Each lane has a concurrency limit (calls running at once) and a queue
+ * limit (calls waiting for a free slot); a call arriving at a full queue is
+ * rejected at once with a {@link java.util.concurrent.RejectedExecutionException}
+ * rather than waiting, which keeps latency bounded for interactive use. With
+ * worker processes, some of them can be kept for the heavy lane alone.
+ *
+ * <p>
+ * Molecules are classified on the extracted InChI input, after hydrogens
+ * have been folded into their neighbours: the number of atoms, and the
+ * number of rings (bonds - atoms + connected components).
+ */
+public final class InChILanes {
+
+    /**
+     * Lanes calls are sorted into.
+     */
+    public enum Lane {
+        /** molecules below both thresholds */
+        LIGHT,
+        /** molecules at or above either threshold */
+        HEAVY
+    }
+
+    /** no limit on concurrency or queue length */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final int heavyAtomCount;
+
+    private final int heavyRingCount;
+
+    private final int[] concurrency = { UNLIMITED, UNLIMITED };
+
+    private final int[] queueLimit = { UNLIMITED, UNLIMITED };
+
+    private int heavyWorkers;
+
+    /**
+     * @param heavyAtomCount    molecules with at least this many atoms are
+     *                          heavy
+     * @param heavyRingCount    molecules with at least this many rings are
+     *                          heavy
+     */
+    public InChILanes(int heavyAtomCount, int heavyRingCount) {
+        if (heavyAtomCount < 1 || heavyRingCount < 1) {
+            throw new IllegalArgumentException("Lane thresholds must be positive: "
+                    + heavyAtomCount + ", " + heavyRingCount);
+        }
+        this.heavyAtomCount = heavyAtomCount;
+        this.heavyRingCount = heavyRingCount;
+    }
+
+    /**
+     * @param lane
+     * @param concurrency   calls that may run at once, or {@link #UNLIMITED}
+     * @param queueLimit    calls that may wait for a free slot, or
+     *                      {@link #UNLIMITED}; 0 to reject whenever the lane
+     *                      is busy
+     */
+    public void setLimits(Lane lane, int concurrency, int queueLimit) {
+        if (concurrency < 1 || queueLimit < 0) {
+            throw new IllegalArgumentException("Bad lane limits: " + concurrency + ", " + queueLimit);
+        }
+        this.concurrency[lane.ordinal()] = concurrency;
+        this.queueLimit[lane.ordinal()] = queueLimit;
+    }
+
+    /**
+     * @param lane
+     * @return calls that may run at once
+     */
+    public int getConcurrency(Lane lane) {
+        return concurrency[lane.ordinal()];
+    }
+
+    /**
+     * @param lane
+     * @return calls that may wait for a free slot
+     */
+    public int getQueueLimit(Lane lane) {
+        return queueLimit[lane.ordinal()];
+    }
+
+    /**
+     * Keeps some worker processes for heavy molecules. Applies to workers
+     * started by {@link InChIGeneratorFactory#startWorkers(int)} after the
+     * lanes are set, and only if at least one worker is left for the light
+     * lane; otherwise both lanes share the workers.
+     *
+     * @param heavyWorkers  number of workers for the heavy lane, 0 to share
+     */
+    public void setHeavyWorkers(int heavyWorkers) {
+        if (heavyWorkers < 0) {
+            throw new IllegalArgumentException("Bad number of heavy workers: " + heavyWorkers);
+        }
+        this.heavyWorkers = heavyWorkers;
+    }
+
+    /**
+     * @return number of workers for the heavy lane, 0 if shared
+     */
+    public int getHeavyWorkers() {
+        return heavyWorkers;
+    }
+
+    /**
+     * @return heavy atom count threshold
+     */
+    public int getHeavyAtomCount() {
+        return heavyAtomCount;
+    }
+
+    /**
+     * @return heavy ring count threshold
+     */
+    public int getHeavyRingCount() {
+        return heavyRingCount;
+    }
+
+    /**
+     * @param atomCount
+     * @param ringCount
+     * @return lane for a molecule of this size
+     */
+    public Lane classify(int atomCount, int ringCount) {
+        return atomCount >= heavyAtomCount || ringCount >= heavyRingCount ? Lane.HEAVY : Lane.LIGHT;
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sf.jniinchi.INCHI_RET;
+
+/**
+ * <p>
+ * Keeps counts per phase, return status and problem, and a histogram of the
+ * time taken by each phase. Histograms have one bucket per power of two
+ * nanoseconds, so percentiles are accurate to within a factor of two, and
+ * recording a time is a few atomic increments with no locking.
+ *
+ * <p>
+ * Exposed to JMX as an {@link InChIMetricsMBean}.
+ */
+public class InChIMetrics implements InChIMetricsListener, InChIMetricsMBean {
+
+    private static final int BUCKETS = 64;
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final INCHI_RET[] STATUSES = INCHI_RET.values();
+
+    private static final Problems[] PROBLEMS = Problems.values();
+
+    /** per phase: count, total nanos, then the buckets */
+    private final AtomicLongArray phases = new AtomicLongArray(PHASES.length * (BUCKETS + 2));
+
+    private final AtomicLongArray statuses = new AtomicLongArray(STATUSES.length);
+
+    private final AtomicLongArray structureStatuses = new AtomicLongArray(STATUSES.length);
+
+    private final AtomicLongArray problems = new AtomicLongArray(PROBLEMS.length);
+
+    public void phaseCompleted(Phase phase, long nanos) {
+        int base = phase.ordinal() * (BUCKETS + 2);
+        long n = Math.max(nanos, 0);
+        phases.incrementAndGet(base);
+        phases.addAndGet(base + 1, n);
+        phases.incrementAndGet(base + 2 + bucket(n));
+    }
+
+    public void inchiStarted(int atomCount, int bondCount, String options) {
+        // counted when the outcome is known
+    }
+
+    public void inchiGenerated(INCHI_RET status) {
+        statuses.incrementAndGet(status.ordinal());
+    }
+
+    public void inchiProblem(Problems problem) {
+        problems.incrementAndGet(problem.ordinal());
+    }
+
+    public void structureStarted(String inchi, String options) {
+        // counted when the outcome is known
+    }
+
+    public void structureGenerated(INCHI_RET status, int atomCount, int bondCount) {
+        structureStatuses.incrementAndGet(status.ordinal());
+    }
+
+    private static int bucket(long nanos) {
+        return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * @param phase
+     * @return number of times the phase was timed
+     */
+    public long getPhaseCount(Phase phase) {
+        return phases.get(phase.ordinal() * (BUCKETS + 2));
+    }
+
+    /**
+     * @param phase
+     * @return total time in the phase, nanoseconds
+     */
+    public long getPhaseTotalNanos(Phase phase) {
+        return phases.get(phase.ordinal() * (BUCKETS + 2) + 1);
+    }
+
+    /**
+     * @param phase
+     * @param percentile    0 to 100
+     * @return upper bound of the bucket holding the percentile, nanoseconds;
+     *         0 if the phase has not been timed
+     */
+    public long getPhasePercentileNanos(Phase phase, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Bad percentile: " + percentile);
+        }
+        int base = phase.ordinal() * (BUCKETS + 2) + 2;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = phases.get(base + i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @param status
+     * @return number of InChIs generated with this status
+     */
+    public long getReturnStatusCount(INCHI_RET status) {
+        return statuses.get(status.ordinal());
+    }
+
+    /**
+     * @param status
+     * @return number of structures decoded with this status
+     */
+    public long getStructureReturnStatusCount(INCHI_RET status) {
+        return structureStatuses.get(status.ordinal());
+    }
+
+    /**
+     * @param problem
+     * @return number of generators stopped by this problem
+     */
+    public long getProblemCount(Problems problem) {
+        return problems.get(problem.ordinal());
+    }
+
+    public long getPhaseCount(String phase) {
+        return getPhaseCount(Phase.valueOf(phase));
+    }
+
+    public long getPhaseTotalNanos(String phase) {
+        return getPhaseTotalNanos(Phase.valueOf(phase));
+    }
+
+    public long getPhasePercentileNanos(String phase, double percentile) {
+        return getPhasePercentileNanos(Phase.valueOf(phase), percentile);
+    }
+
+    public long getReturnStatusCount(String status) {
+        return getReturnStatusCount(INCHI_RET.valueOf(status));
+    }
+
+    public long getStructureReturnStatusCount(String status) {
+        return getStructureReturnStatusCount(INCHI_RET.valueOf(status));
+    }
+
+    public long getProblemCount(String problem) {
+        return getProblemCount(Problems.valueOf(problem));
+    }
+
+    /**
+     * Sets all counts back to zero. Times being recorded meanwhile may be
+     * partly lost.
+     */
+    public void reset() {
+        clear(phases);
+        clear(statuses);
+        clear(structureStatuses);
+        clear(problems);
+    }
+
+    private static void clear(AtomicLongArray array) {
+        for (int i = 0; i < array.length(); i++) {
+            array.set(i, 0);
+        }
+    }
+
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : PHASES) {
+            long count = getPhaseCount(phase);
+            if (count == 0) {
+                continue;
+            }
+            sb.append(phase).append(": count=").append(count)
+                    .append(" mean=").append(getPhaseTotalNanos(phase) / count / 1000).append("us")
+                    .append(" p50<=").append(getPhasePercentileNanos(phase, 50) / 1000).append("us")
+                    .append(" p99<=").append(getPhasePercentileNanos(phase, 99) / 1000).append("us\n");
+        }
+        appendCounts(sb, "InChI", STATUSES, statuses);
+        appendCounts(sb, "Problems", PROBLEMS, problems);
+        appendCounts(sb, "Structure", STATUSES, structureStatuses);
+        return sb.toString();
+    }
+
+    private static void appendCounts(StringBuilder sb, String label, Enum<?>[] names, AtomicLongArray counts) {
+        int start = sb.length();
+        for (int i = 0; i < names.length; i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                sb.append(sb.length() == start ? label + ":" : "").append(' ')
+                        .append(names[i]).append('=').append(count);
+            }
+        }
+        if (sb.length() > start) {
+            sb.append('\n');
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+
+}
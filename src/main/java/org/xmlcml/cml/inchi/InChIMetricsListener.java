@@ -0,0 +1,101 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import net.sf.jniinchi.INCHI_RET;
+
+/**
+ * <p>
+ * Told how long each phase of InChI generation and decoding took, and how
+ * each call came out. Set on a factory with
+ * {@link InChIGeneratorFactory#setMetricsListener(InChIMetricsListener)};
+ * {@link InChIMetrics} is an implementation that keeps counts and
+ * histograms. When no listener is set the phases are not timed at all.
+ *
+ * <p>
+ * Methods are called on the threads doing the work, often several at once,
+ * so they must be thread-safe and quick. The start of each library call is
+ * reported on the thread making it, followed on the same thread by the
+ * LOCK_WAIT, NATIVE and MARSHAL phases of that call and then its outcome,
+ * so a listener can tie phase times to the call they belong to.
+ */
+public interface InChIMetricsListener {
+
+    /**
+     * Phases of a call.
+     */
+    enum Phase {
+        /** reading the CMLMolecule or MoleculeTable into the InChI input */
+        EXTRACT,
+        /** waiting for the native library, or for a free worker process */
+        LOCK_WAIT,
+        /** the library call, or the round trip to a worker process */
+        NATIVE,
+        /** converting the library's input and output, including encoding
+         *  and decoding for worker processes */
+        MARSHAL,
+        /** building the CMLMolecule from a decoded InChI */
+        BUILD
+    }
+
+    /**
+     * @param phase
+     * @param nanos     time taken
+     */
+    void phaseCompleted(Phase phase, long nanos);
+
+    /**
+     * Called when a generator is about to call InChI.
+     *
+     * @param atomCount
+     * @param bondCount
+     * @param options   options as passed to the library
+     */
+    void inchiStarted(int atomCount, int bondCount, String options);
+
+    /**
+     * Called once per generator that reached InChI.
+     *
+     * @param status    return status
+     */
+    void inchiGenerated(INCHI_RET status);
+
+    /**
+     * Called once per generator that did not get a result from InChI.
+     *
+     * @param problem
+     */
+    void inchiProblem(Problems problem);
+
+    /**
+     * Called when an InChI is about to be decoded to a structure.
+     *
+     * @param inchi
+     * @param options   options as passed to the library
+     */
+    void structureStarted(String inchi, String options);
+
+    /**
+     * Called once per InChI decoded to a structure.
+     *
+     * @param status    return status
+     * @param atomCount atoms in the structure
+     * @param bondCount bonds in the structure
+     */
+    void structureGenerated(INCHI_RET status, int atomCount, int bondCount);
+
+}
@@ -0,0 +1,74 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+/**
+ * JMX view of an {@link InChIMetrics}, registered by
+ * {@link InChIGeneratorFactory#enableMetrics(String)}. Phases, statuses and
+ * problems are named as in {@link InChIMetricsListener.Phase},
+ * {@link net.sf.jniinchi.INCHI_RET} and {@link Problems}.
+ */
+public interface InChIMetricsMBean {
+
+    /**
+     * @return counts, times and outcomes as text
+     */
+    String getSummary();
+
+    /**
+     * @param phase
+     * @return number of times the phase was timed
+     */
+    long getPhaseCount(String phase);
+
+    /**
+     * @param phase
+     * @return total time in the phase, nanoseconds
+     */
+    long getPhaseTotalNanos(String phase);
+
+    /**
+     * @param phase
+     * @param percentile    0 to 100
+     * @return upper bound of the percentile, nanoseconds
+     */
+    long getPhasePercentileNanos(String phase, double percentile);
+
+    /**
+     * @param status
+     * @return number of InChIs generated with this status
+     */
+    long getReturnStatusCount(String status);
+
+    /**
+     * @param status
+     * @return number of structures decoded with this status
+     */
+    long getStructureReturnStatusCount(String status);
+
+    /**
+     * @param problem
+     * @return number of generators stopped by this problem
+     */
+    long getProblemCount(String problem);
+
+    /**
+     * Sets all counts back to zero.
+     */
+    void reset();
+
+}
@@ -0,0 +1,222 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import net.sf.jniinchi.INCHI_OPTION;
+
+/**
+ * <p>
+ * Immutable, validated set of InChI options. Parse the options once and pass
+ * the same instance to every
+ * {@link InChIGeneratorFactory#getInChIGenerator(org.xmlcml.cml.element.CMLMolecule, InChIOptions)}
+ * call, rather than a string or list that each generator parses again.
+ *
+ * <p>
+ * Options are held in a canonical form: switches (- or /) and case are
+ * ignored, duplicates are dropped and the order is that of
+ * {@link INCHI_OPTION}. Two instances are equal if they select the same
+ * options, so an instance may be used as a map or cache key; its string form
+ * is what is passed to the library.
+ */
+public final class InChIOptions {
+
+    /**
+     * No options.
+     */
+    public static final InChIOptions NONE = new InChIOptions(EnumSet.noneOf(INCHI_OPTION.class), null);
+
+    private static final INCHI_OPTION[] ALL = INCHI_OPTION.values();
+
+    private static final LruCache<String, InChIOptions> PARSED = new LruCache<String, InChIOptions>(64);
+
+    private final Set<INCHI_OPTION> options;
+
+    private final String timeout;
+
+    private final String string;
+
+    /** these options with AuxNone, made on first use */
+    private volatile InChIOptions withoutAuxInfo;
+
+    private InChIOptions(EnumSet<INCHI_OPTION> options, String timeout) {
+        this.options = Collections.unmodifiableSet(options);
+        this.timeout = timeout;
+        StringBuilder sb = new StringBuilder();
+        for (INCHI_OPTION option : options) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('-').append(option.name());
+        }
+        if (timeout != null) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append("-W").append(timeout);
+        }
+        this.string = sb.toString();
+    }
+
+    /**
+     * Parses a string of options. Recently parsed strings are remembered, so
+     * calling this for each molecule is cheap.
+     *
+     * @param options   space delimited options, each optionally preceded
+     *                  by - or /; a timeout may be given as W followed by
+     *                  the number of seconds. May be null.
+     * @return options
+     * @throws IllegalArgumentException for an unrecognised option
+     */
+    public static InChIOptions valueOf(String options) {
+        if (options == null || options.trim().length() == 0) {
+            return NONE;
+        }
+        InChIOptions parsed = PARSED.get(options);
+        if (parsed == null) {
+            parsed = parse(options.trim().split("\\s+"));
+            PARSED.put(options, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * @param options   INCHI_OPTIONs, or strings as accepted by
+     *                  {@link #valueOf(String)}
+     * @return options
+     * @throws IllegalArgumentException for an unrecognised option
+     */
+    public static InChIOptions valueOf(Collection<?> options) {
+        if (options == null || options.isEmpty()) {
+            return NONE;
+        }
+        String[] tokens = new String[options.size()];
+        int i = 0;
+        for (Object option : options) {
+            tokens[i++] = option instanceof INCHI_OPTION
+                    ? ((INCHI_OPTION) option).name() : String.valueOf(option);
+        }
+        return parse(tokens);
+    }
+
+    private static InChIOptions parse(String[] tokens) {
+        EnumSet<INCHI_OPTION> options = EnumSet.noneOf(INCHI_OPTION.class);
+        String timeout = null;
+        for (String token : tokens) {
+            String name = token.trim();
+            if (name.startsWith("-") || name.startsWith("/")) {
+                name = name.substring(1);
+            }
+            if (name.length() == 0) {
+                continue;
+            }
+            INCHI_OPTION option = lookup(name);
+            if (option != null) {
+                options.add(option);
+            } else if (isTimeout(name)) {
+                timeout = name.substring(1);
+            } else {
+                throw new IllegalArgumentException("Unrecognised InChI option: " + token);
+            }
+        }
+        return options.isEmpty() && timeout == null ? NONE : new InChIOptions(options, timeout);
+    }
+
+    private static INCHI_OPTION lookup(String name) {
+        for (INCHI_OPTION option : ALL) {
+            if (option.name().equalsIgnoreCase(name)) {
+                return option;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isTimeout(String name) {
+        if (name.length() < 2 || Character.toUpperCase(name.charAt(0)) != 'W') {
+            return false;
+        }
+        try {
+            return Double.parseDouble(name.substring(1)) >= 0;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the options, excluding any timeout
+     */
+    public Set<INCHI_OPTION> getOptions() {
+        return options;
+    }
+
+    /**
+     * @param option
+     * @return true if the option is set
+     */
+    public boolean contains(INCHI_OPTION option) {
+        return options.contains(option);
+    }
+
+    /**
+     * @return these options with AuxNone added, so that the library makes no
+     *         AuxInfo; this instance if AuxNone is already set
+     */
+    InChIOptions withoutAuxInfo() {
+        InChIOptions without = withoutAuxInfo;
+        if (without == null) {
+            if (contains(INCHI_OPTION.AuxNone)) {
+                without = this;
+            } else {
+                EnumSet<INCHI_OPTION> set = EnumSet.of(INCHI_OPTION.AuxNone);
+                set.addAll(options);
+                without = new InChIOptions(set, timeout);
+            }
+            withoutAuxInfo = without;
+        }
+        return without;
+    }
+
+    /**
+     * @return timeout in seconds as given, or null if none
+     */
+    public String getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return canonical option string, as passed to the library
+     */
+    @Override
+    public String toString() {
+        return string;
+    }
+
+    @Override
+    public int hashCode() {
+        return string.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof InChIOptions && string.equals(((InChIOptions) o).string);
+    }
+
+}
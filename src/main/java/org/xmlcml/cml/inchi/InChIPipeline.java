@@ -0,0 +1,265 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * <p>
+ * Generates InChIs for every molecule in a CML document and writes them out
+ * as they are made, one tab-separated line per molecule:
+ * <pre>
+ * id    InChI    InChIKey    status
+ * </pre>
+ * where the id is that of the molecule, the InChIKey is only filled in with
+ * {@link ProcessingOptions#INCHI_KEY}, and the status is the InChI return
+ * status or, for a molecule that did not reach InChI, the {@link Problems}.
+ * Missing values are empty.
+ *
+ * <p>
+ * Molecules are read with a {@link CMLMoleculeReader} and passed through
+ * {@link InChIGeneratorFactory#generateAll(Iterable, InChIOptions, ProcessingOptions[], InChIResultSink)},
+ * so only a bounded number of molecules is held at once however large the
+ * document, and the factory's worker processes, lanes and caches are used.
+ * A single large file may instead be split with a {@link MappedCMLReader},
+ * so that parsing is done in parallel too. SD files are read with an
+ * {@link SDFReader}, straight into {@link MoleculeTable}s.
+ */
+public class InChIPipeline {
+
+    private final InChIGeneratorFactory factory;
+
+    private final InChIOptions options;
+
+    private final ProcessingOptions[] processingOptions;
+
+    /**
+     * @param factory
+     * @param options           options for InChI generation
+     * @param processingOptions processing options for each generator; none
+     *                          for the defaults
+     */
+    public InChIPipeline(InChIGeneratorFactory factory, InChIOptions options,
+            ProcessingOptions... processingOptions) {
+        this.factory = factory;
+        this.options = options;
+        this.processingOptions = processingOptions.length == 0 ? null : processingOptions;
+    }
+
+    /**
+     * Reads the whole document and writes a line for each molecule. Neither
+     * stream is closed; the writer is flushed.
+     *
+     * @param cml   CML document
+     * @param out   receives the results
+     * @return number of molecules
+     * @throws RuntimeException if the CML cannot be read or the results
+     *         cannot be written
+     */
+    public long run(InputStream cml, Writer out) {
+        CMLMoleculeReader reader = new CMLMoleculeReader(cml);
+        try {
+            return run(reader, out);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a line for each molecule left in the reader. The writer is
+     * flushed, not closed.
+     *
+     * @param reader
+     * @param out   receives the results
+     * @return number of molecules
+     * @throws RuntimeException if the CML cannot be read or the results
+     *         cannot be written
+     */
+    public long run(CMLMoleculeReader reader, Writer out) {
+        return run(InChIGeneratorFactory.readers(reader.iterator()), out);
+    }
+
+    /**
+     * Reads the whole file and writes a line for each molecule, splitting
+     * the file with a {@link MappedCMLReader} so that the molecules are
+     * parsed in parallel on the factory's extraction threads. Lines are in
+     * document order. The writer is flushed, not closed.
+     *
+     * @param cml   CML file, subject to the restrictions of MappedCMLReader
+     * @param out   receives the results
+     * @return number of molecules
+     * @throws RuntimeException if the CML cannot be read or the results
+     *         cannot be written
+     */
+    public long run(File cml, Writer out) {
+        MappedCMLReader reader = new MappedCMLReader(cml, factory.getExtractionExecutor());
+        try {
+            return run(reader.iterator(), out);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a line for each record left in the SD file, with the id the
+     * reader gives it. Records are parsed in parallel on the factory's
+     * extraction threads; lines are in file order. The writer is flushed,
+     * not closed.
+     *
+     * @param records
+     * @param out   receives the results
+     * @return number of records
+     * @throws RuntimeException if a record cannot be read or the results
+     *         cannot be written
+     */
+    public long run(SDFReader records, Writer out) {
+        return run(records.batches(), out);
+    }
+
+    private long run(Iterator<? extends Callable<? extends List<?>>> batches, Writer out) {
+        LinkedList<IdSlot> slots = new LinkedList<IdSlot>();
+        ResultWriter writer = new ResultWriter(slots, out);
+        factory.generateLazily(new IdTracker(batches, slots), options, processingOptions, writer);
+        try {
+            out.flush();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to write InChIs: " + ioe.getMessage(), ioe);
+        }
+        return writer.count;
+    }
+
+    /**
+     * Reads a batch of molecules or tables and keeps their ids. The ids are
+     * set on the thread that reads the batch and read after the factory has
+     * waited for that thread, so need no locking.
+     */
+    private static final class IdSlot implements Callable<List<?>> {
+
+        private final Callable<? extends List<?>> batch;
+
+        private String[] ids;
+
+        IdSlot(Callable<? extends List<?>> batch) {
+            this.batch = batch;
+        }
+
+        public List<?> call() throws Exception {
+            List<?> molecules = batch.call();
+            String[] read = new String[molecules.size()];
+            for (int i = 0; i < read.length; i++) {
+                Object molecule = molecules.get(i);
+                read[i] = molecule instanceof MoleculeTable ? ((MoleculeTable) molecule).getId()
+                        : ((CMLMolecule) molecule).getId();
+            }
+            ids = read;
+            return molecules;
+        }
+
+    }
+
+    /**
+     * Queues a slot for each batch handed out, until its results are
+     * written. The factory reads a bounded number ahead, so the queue stays
+     * short.
+     */
+    private static final class IdTracker implements Iterator<IdSlot> {
+
+        private final Iterator<? extends Callable<? extends List<?>>> batches;
+
+        private final LinkedList<IdSlot> slots;
+
+        IdTracker(Iterator<? extends Callable<? extends List<?>>> batches, LinkedList<IdSlot> slots) {
+            this.batches = batches;
+            this.slots = slots;
+        }
+
+        public boolean hasNext() {
+            return batches.hasNext();
+        }
+
+        public IdSlot next() {
+            IdSlot slot = new IdSlot(batches.next());
+            slots.add(slot);
+            return slot;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private static final class ResultWriter implements InChIResultSink {
+
+        private final LinkedList<IdSlot> slots;
+
+        private final Writer out;
+
+        private IdSlot slot;
+
+        private int index;
+
+        private long count;
+
+        ResultWriter(LinkedList<IdSlot> slots, Writer out) {
+            this.slots = slots;
+            this.out = out;
+        }
+
+        public void accept(InChIResult result) {
+            while (slot == null || index == slot.ids.length) {
+                slot = slots.removeFirst();
+                index = 0;
+            }
+            String id = slot.ids[index++];
+            try {
+                write(id);
+                out.write('\t');
+                write(result.getInchi());
+                out.write('\t');
+                write(result.getInchiKey());
+                out.write('\t');
+                if (result.getProblem() != null) {
+                    out.write(result.getProblem().name());
+                } else {
+                    out.write(result.getReturnStatus().name());
+                }
+                out.write('\n');
+            } catch (IOException ioe) {
+                throw new RuntimeException("Failed to write InChIs: " + ioe.getMessage(), ioe);
+            }
+            count++;
+        }
+
+        private void write(String value) throws IOException {
+            if (value != null) {
+                out.write(value);
+            }
+        }
+
+    }
+
+}
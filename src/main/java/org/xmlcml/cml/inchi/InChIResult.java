@@ -0,0 +1,168 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import net.sf.jniinchi.INCHI_RET;
+import net.sf.jniinchi.JniInchiOutput;
+
+/**
+ * <p>
+ * Outcome of one InChI calculation: the return status, the InChI and, where
+ * they were kept, the AuxInfo, message, log and InChIKey; or the problem
+ * that stopped the molecule reaching InChI. Immutable, and holds no
+ * reference to the molecule or the library's input, so results can be kept
+ * in bulk or streamed away cheaply.
+ *
+ * <p>
+ * Obtained from {@link InChIGenerator#getResult()}, or passed to an
+ * {@link InChIResultSink} by
+ * {@link InChIGeneratorFactory#generateAll(Iterable, InChIOptions, ProcessingOptions[], InChIResultSink)}.
+ */
+public final class InChIResult {
+
+    /**
+     * How much of the output is kept.
+     */
+    enum Detail {
+        /** everything */
+        FULL,
+        /** InChI and status */
+        INCHI,
+        /** status */
+        STATUS
+    }
+
+    private final INCHI_RET returnStatus;
+
+    private final String inchi;
+
+    private final String auxInfo;
+
+    private final String message;
+
+    private final String log;
+
+    private final String inchiKey;
+
+    private final Problems problem;
+
+    private final String stamp;
+
+    InChIResult(INCHI_RET returnStatus, String inchi, String auxInfo,
+            String message, String log) {
+        this(returnStatus, inchi, auxInfo, message, log, null, null, null);
+    }
+
+    private InChIResult(INCHI_RET returnStatus, String inchi, String auxInfo,
+            String message, String log, String inchiKey, Problems problem, String stamp) {
+        this.returnStatus = returnStatus;
+        this.inchi = inchi;
+        this.auxInfo = auxInfo;
+        this.message = message;
+        this.log = log;
+        this.inchiKey = inchiKey;
+        this.problem = problem;
+        this.stamp = stamp;
+    }
+
+    static InChIResult fromOutput(JniInchiOutput output, Detail detail) {
+        if (detail == Detail.FULL) {
+            return new InChIResult(output.getReturnStatus(), output.getInchi(),
+                    output.getAuxInfo(), output.getMessage(), output.getLog());
+        }
+        return new InChIResult(output.getReturnStatus(),
+                detail == Detail.INCHI ? output.getInchi() : null, null, null, null);
+    }
+
+    static InChIResult forProblem(Problems problem) {
+        return new InChIResult(null, null, null, null, null, null, problem, null);
+    }
+
+    InChIResult withInchiKey(String inchiKey) {
+        return new InChIResult(returnStatus, inchi, auxInfo, message, log, inchiKey, problem, stamp);
+    }
+
+    InChIResult withStamp(InChIStamp stamp) {
+        return new InChIResult(returnStatus, inchi, auxInfo, message, log, inchiKey, problem, stamp.toString());
+    }
+
+    /**
+     * @return return status, or null if a problem stopped the molecule
+     *         reaching InChI
+     */
+    public INCHI_RET getReturnStatus() {
+        return returnStatus;
+    }
+
+    /**
+     * @return true if an InChI was generated (status OKAY or WARNING)
+     */
+    public boolean isOK() {
+        return returnStatus == INCHI_RET.OKAY || returnStatus == INCHI_RET.WARNING;
+    }
+
+    /**
+     * @return InChI, or null
+     */
+    public String getInchi() {
+        return inchi;
+    }
+
+    /**
+     * @return AuxInfo, or null if not generated or not kept
+     */
+    public String getAuxInfo() {
+        return auxInfo;
+    }
+
+    /**
+     * @return (error/warning) messages, or null if not kept
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return log, or null if not kept
+     */
+    public String getLog() {
+        return log;
+    }
+
+    /**
+     * @return InChIKey, or null if not calculated
+     */
+    public String getInchiKey() {
+        return inchiKey;
+    }
+
+    /**
+     * @return problem found before reaching InChI, or null
+     */
+    public Problems getProblem() {
+        return problem;
+    }
+
+    /**
+     * @return stamp recording what the InChI was made from, with
+     *         {@link ProcessingOptions#INCREMENTAL}; otherwise null
+     */
+    public String getStamp() {
+        return stamp;
+    }
+
+}
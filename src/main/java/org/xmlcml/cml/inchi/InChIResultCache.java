@@ -0,0 +1,161 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import net.sf.jniinchi.JniInchiInput;
+
+/**
+ * <p>
+ * Bounded LRU cache of InChI results, keyed on a SHA-256 digest of the
+ * complete InChI input (atoms, coordinates, bonds, stereo) and the option
+ * string. On a hit the InChI, AuxInfo, message, log and return status are
+ * returned without calling the library. InChIKeys are kept alongside, keyed
+ * on the InChI, in a second table of the same size. The hit, miss and
+ * eviction counters cover both tables; {@link #size()} and
+ * {@link #getInchiKeyCount()} count each.
+ *
+ * <p>
+ * One cache may be shared by any number of threads and factories; see
+ * {@link InChIGeneratorFactory#setResultCache(InChIResultCache)}.
+ */
+public class InChIResultCache {
+
+    private final LruCache<Key, InChIResult> cache;
+
+    private final LruCache<String, String> keys;
+
+    /**
+     * @param maxEntries  number of results (and of InChIKeys) to keep
+     */
+    public InChIResultCache(int maxEntries) {
+        cache = new LruCache<Key, InChIResult>(maxEntries);
+        keys = new LruCache<String, String>(maxEntries);
+    }
+
+    InChIResult get(Key key) {
+        return cache.get(key);
+    }
+
+    void put(Key key, InChIResult result) {
+        cache.put(key, result);
+    }
+
+    String getInchiKey(String inchi) {
+        return keys.get(inchi);
+    }
+
+    void putInchiKey(String inchi, String inchiKey) {
+        keys.put(inchi, inchiKey);
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHitCount() {
+        return cache.getHits() + keys.getHits();
+    }
+
+    /**
+     * @return number of lookups that had to call InChI
+     */
+    public long getMissCount() {
+        return cache.getMisses() + keys.getMisses();
+    }
+
+    /**
+     * @return number of results and InChIKeys dropped to make room
+     */
+    public long getEvictionCount() {
+        return cache.getEvictions() + keys.getEvictions();
+    }
+
+    /**
+     * @return number of results currently held
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return number of InChIKeys currently held
+     */
+    public int getInchiKeyCount() {
+        return keys.size();
+    }
+
+    /**
+     * @return maximum number of results held, and separately of InChIKeys
+     */
+    public int getMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    /**
+     * Drops all results and InChIKeys. The counters are kept.
+     */
+    public void clear() {
+        cache.clear();
+        keys.clear();
+    }
+
+    static Key keyFor(JniInchiInput input, String options, InChIResult.Detail detail) {
+        return new Key(digest(InChIWire.encodeInput(input, options, detail)));
+    }
+
+    static byte[] digest(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("SHA-256 not available", nsae);
+        }
+    }
+
+    /**
+     * Digest of an encoded input.
+     */
+    static final class Key {
+
+        private final byte[] digest;
+
+        private final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        byte[] getDigest() {
+            return digest;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+    }
+
+}
@@ -0,0 +1,433 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.jniinchi.INCHI_RET;
+import net.sf.jniinchi.JniInchiWrapper;
+
+/**
+ * <p>
+ * InChI results kept on disk between runs, so that a restarted job starts
+ * with the results of earlier ones. Entries are keyed like
+ * {@link InChIResultCache}, on a digest of the InChI input and option
+ * string, and hold the return status, InChI, AuxInfo and message (not the
+ * log). InChIKeys are held as separate entries keyed on the InChI.
+ *
+ * <p>
+ * The file is a fixed header, an open-addressing (linear probing) index that
+ * is memory-mapped, and an append-only region of records. The header carries
+ * a stamp of the jni-inchi version; if it does not match the library on the
+ * classpath, or the file was created with a different size, the file is
+ * emptied when opened. Options are part of every key, so results for a
+ * different option string are never returned. The file is locked while the
+ * store is open, so only one store, in this process or another, can use it
+ * at a time.
+ *
+ * <p>
+ * The store holds at most <code>maxEntries</code> results and keys; once
+ * full, nothing more is added. Use
+ * {@link InChIGeneratorFactory#setResultStore(InChIResultStore)} to put it
+ * behind a factory, and {@link #close()} when done.
+ */
+public class InChIResultStore {
+
+    private static final int MAGIC = 0x49436853;
+
+    private static final int FORMAT = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 16;
+
+    private static final int H_MAGIC = 0;
+
+    private static final int H_FORMAT = 4;
+
+    private static final int H_SLOTS = 8;
+
+    private static final int H_COUNT = 12;
+
+    private static final int H_DATA_END = 16;
+
+    private static final int H_STAMP = 24;
+
+    private static final int DIGEST_SIZE = 32;
+
+    private static final INCHI_RET[] RETS = INCHI_RET.values();
+
+    private static final String KEY_PREFIX = "InChIKey:";
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer index;
+
+    private final int maxEntries;
+
+    private final int slots;
+
+    private int count;
+
+    private long dataEnd;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Opens a store, creating or emptying the file if necessary.
+     *
+     * @param path        file to use
+     * @param maxEntries  number of results and InChIKeys the store can hold
+     * @throws IllegalStateException if another store has the file open
+     * @throws RuntimeException if the file cannot be opened
+     */
+    public InChIResultStore(File path, int maxEntries) {
+        this(path, maxEntries, libraryVersion());
+    }
+
+    InChIResultStore(File path, int maxEntries, String version) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Store size must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        int slots = 1;
+        while (slots < 2 * maxEntries) {
+            slots <<= 1;
+        }
+        this.slots = slots;
+        byte[] stamp = InChIResultCache.digest(utf8(FORMAT + ":" + version));
+        long dataStart = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        RandomAccessFile raf = null;
+        boolean opened = false;
+        try {
+            raf = new RandomAccessFile(path, "rw");
+            file = raf;
+            channel = raf.getChannel();
+            lock(path);
+            boolean reuse = headerMatches(stamp, dataStart);
+            if (!reuse) {
+                channel.truncate(0);
+            }
+            index = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart);
+            if (!reuse) {
+                for (long pos = HEADER_SIZE; pos < dataStart; pos += 8) {
+                    index.putLong((int) pos, 0L);
+                }
+                index.putInt(H_MAGIC, MAGIC);
+                index.putInt(H_FORMAT, FORMAT);
+                index.putInt(H_SLOTS, slots);
+                index.putInt(H_COUNT, 0);
+                index.putLong(H_DATA_END, dataStart);
+                for (int i = 0; i < DIGEST_SIZE; i++) {
+                    index.put(H_STAMP + i, stamp[i]);
+                }
+            }
+            count = index.getInt(H_COUNT);
+            dataEnd = index.getLong(H_DATA_END);
+            opened = true;
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to open InChI result store " + path + ": " + ioe.getMessage(), ioe);
+        } finally {
+            if (!opened && raf != null) {
+                try {
+                    // also releases the lock
+                    raf.close();
+                } catch (IOException ioe) {
+                    // already failing
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes an exclusive lock on the whole file, held until it is closed.
+     */
+    private void lock(File path) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException ofle) {
+            // held by another store in this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IllegalStateException("InChI result store " + path + " is already in use");
+        }
+    }
+
+    private boolean headerMatches(byte[] stamp, long dataStart) throws IOException {
+        if (channel.size() < dataStart) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        byte[] fileStamp = new byte[DIGEST_SIZE];
+        header.position(H_STAMP);
+        header.get(fileStamp);
+        long end = header.getLong(H_DATA_END);
+        return header.getInt(H_MAGIC) == MAGIC
+                && header.getInt(H_FORMAT) == FORMAT
+                && header.getInt(H_SLOTS) == slots
+                && Arrays.equals(stamp, fileStamp)
+                && end >= dataStart && end <= channel.size();
+    }
+
+    /**
+     * @return the stored result, or null
+     */
+    synchronized InChIResult get(InChIResultCache.Key key) {
+        DataInputStream in = find(key.getDigest());
+        if (in == null) {
+            return null;
+        }
+        try {
+            INCHI_RET ret = RETS[in.readByte()];
+            String inchi = InChIWire.readString(in);
+            String auxInfo = InChIWire.readString(in);
+            String message = InChIWire.readString(in);
+            return new InChIResult(ret, inchi, auxInfo, message, null);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read InChI result store: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * @return the stored InChIKey, or null
+     */
+    synchronized String getInchiKey(String inchi) {
+        DataInputStream in = find(keyDigest(inchi));
+        if (in == null) {
+            return null;
+        }
+        try {
+            return InChIWire.readString(in);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read InChI result store: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * @return the record with the given digest, positioned after the digest,
+     *         or null
+     */
+    private DataInputStream find(byte[] digest) {
+        long tag = tag(digest);
+        int slot = (int) tag & (slots - 1);
+        for (int probe = 0; probe < slots; probe++) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            long slotTag = index.getLong(pos);
+            if (slotTag == 0) {
+                break;
+            }
+            if (slotTag == tag) {
+                DataInputStream in = read(index.getLong(pos + 8), digest);
+                if (in != null) {
+                    hits.incrementAndGet();
+                    return in;
+                }
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds a result unless the key is already present or the store is full.
+     */
+    synchronized void put(InChIResultCache.Key key, InChIResult result) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(result.getReturnStatus().ordinal());
+            InChIWire.writeString(out, result.getInchi());
+            InChIWire.writeString(out, result.getAuxInfo());
+            InChIWire.writeString(out, result.getMessage());
+            out.flush();
+            add(key.getDigest(), bytes.toByteArray());
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write InChI result store: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Adds an InChIKey unless already present or the store is full.
+     */
+    synchronized void putInchiKey(String inchi, String inchiKey) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            InChIWire.writeString(out, inchiKey);
+            out.flush();
+            add(keyDigest(inchi), bytes.toByteArray());
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write InChI result store: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private void add(byte[] digest, byte[] payload) throws IOException {
+        if (count >= maxEntries) {
+            return;
+        }
+        long tag = tag(digest);
+        int slot = (int) tag & (slots - 1);
+        int pos = HEADER_SIZE + slot * SLOT_SIZE;
+        long slotTag;
+        while ((slotTag = index.getLong(pos)) != 0) {
+            if (slotTag == tag && read(index.getLong(pos + 8), digest) != null) {
+                return;
+            }
+            slot = (slot + 1) & (slots - 1);
+            pos = HEADER_SIZE + slot * SLOT_SIZE;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + DIGEST_SIZE + payload.length);
+        buffer.putInt(DIGEST_SIZE + payload.length).put(digest).put(payload).flip();
+        long offset = dataEnd;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        index.putLong(pos + 8, offset);
+        index.putLong(pos, tag);
+        dataEnd += buffer.limit();
+        count++;
+        index.putInt(H_COUNT, count);
+        index.putLong(H_DATA_END, dataEnd);
+    }
+
+    private DataInputStream read(long offset, byte[] digest) {
+        if (offset + 4 > dataEnd) {
+            return null;
+        }
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(length, offset);
+            int size = length.getInt(0);
+            if (size < DIGEST_SIZE || offset + 4 + size > dataEnd) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(size);
+            readFully(record, offset + 4);
+            DataInputStream in = InChIWire.open(record.array());
+            byte[] recordDigest = new byte[DIGEST_SIZE];
+            in.readFully(recordDigest);
+            return Arrays.equals(digest, recordDigest) ? in : null;
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read InChI result store: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private static byte[] keyDigest(String inchi) {
+        return InChIResultCache.digest(utf8(KEY_PREFIX + inchi));
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of InChI result store");
+            }
+        }
+    }
+
+    private static long tag(byte[] digest) {
+        long tag = ByteBuffer.wrap(digest).getLong();
+        return tag == 0 ? 1 : tag;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /**
+     * Version of jni-inchi on the classpath: the implementation version from
+     * its manifest, or failing that the location of its jar.
+     *
+     * @return version
+     */
+    static String libraryVersion() {
+        Package pkg = JniInchiWrapper.class.getPackage();
+        String version = pkg == null ? null : pkg.getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+        CodeSource source = JniInchiWrapper.class.getProtectionDomain().getCodeSource();
+        return source == null ? "unknown" : String.valueOf(source.getLocation());
+    }
+
+    /**
+     * @return number of lookups answered from the store
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups not found in the store
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of results and InChIKeys held
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return maximum number of results and InChIKeys held
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Writes the index to disk and closes the file.
+     *
+     * @throws RuntimeException
+     */
+    public synchronized void close() {
+        try {
+            index.force();
+            file.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to close InChI result store: " + ioe.getMessage(), ioe);
+        }
+    }
+
+}
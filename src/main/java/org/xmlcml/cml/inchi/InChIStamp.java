@@ -0,0 +1,117 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import net.sf.jniinchi.INCHI_RET;
+import net.sf.jniinchi.JniInchiInput;
+import net.sf.jniinchi.JniInchiWrapper;
+
+/**
+ * <p>
+ * Records what an InChI identifier was made from, so that a later run can
+ * tell without calling InChI whether it is still current. The stamp is kept
+ * in an identifier of its own, with convention {@link #CONVENTION}, next to
+ * the InChI, and reads
+ * <pre>
+ * fingerprint libraryVersion returnStatus
+ * </pre>
+ * The fingerprint is the first 16 bytes, in hex, of a SHA-256 digest of the
+ * InChI input as extracted and of the options, as the keys of
+ * {@link InChIResultCache} are made, so any change to the atoms, bonds,
+ * stereo or options changes it. The library version is that of the JNI-InChI
+ * jar, or <code>unknown</code> if its manifest does not give one.
+ *
+ * @see ProcessingOptions#INCREMENTAL
+ */
+final class InChIStamp {
+
+    static final String CONVENTION = "jumbo:inchiStamp";
+
+    static final String LIBRARY_VERSION = libraryVersion();
+
+    private static final int FINGERPRINT_BYTES = 16;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String fingerprint;
+
+    private final String version;
+
+    private final INCHI_RET status;
+
+    private InChIStamp(String fingerprint, String version, INCHI_RET status) {
+        this.fingerprint = fingerprint;
+        this.version = version;
+        this.status = status;
+    }
+
+    /**
+     * @param input     as extracted
+     * @param options   canonical options, without those added for the
+     *                  processing options
+     * @param status    return status of the InChI
+     */
+    static InChIStamp forInput(JniInchiInput input, String options, INCHI_RET status) {
+        byte[] digest = InChIResultCache.digest(
+                InChIWire.encodeInput(input, options, InChIResult.Detail.INCHI));
+        StringBuilder sb = new StringBuilder(2 * FINGERPRINT_BYTES);
+        for (int i = 0; i < FINGERPRINT_BYTES; i++) {
+            sb.append(HEX[(digest[i] >> 4) & 0xf]).append(HEX[digest[i] & 0xf]);
+        }
+        return new InChIStamp(sb.toString(), LIBRARY_VERSION, status);
+    }
+
+    /**
+     * @param text  as written by {@link #toString()}
+     * @return stamp, or null if the text is not one
+     */
+    static InChIStamp valueOf(String text) {
+        String[] parts = text.trim().split("\\s+");
+        if (parts.length != 3 || parts[0].length() != 2 * FINGERPRINT_BYTES) {
+            return null;
+        }
+        try {
+            return new InChIStamp(parts[0], parts[1], INCHI_RET.valueOf(parts[2]));
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the other stamp was made from the same input and
+     *         options by the same library version
+     */
+    boolean matches(InChIStamp other) {
+        return other != null && fingerprint.equals(other.fingerprint) && version.equals(other.version);
+    }
+
+    INCHI_RET getStatus() {
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return fingerprint + " " + version + " " + status.name();
+    }
+
+    private static String libraryVersion() {
+        Package jniInchi = JniInchiWrapper.class.getPackage();
+        String version = jniInchi == null ? null : jniInchi.getImplementationVersion();
+        return version == null || version.trim().length() == 0 ? "unknown" : version.trim().replaceAll("\\s+", "_");
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.jniinchi.INCHI_BOND_TYPE;
+import net.sf.jniinchi.INCHI_RET;
+import net.sf.jniinchi.JniInchiAtom;
+import net.sf.jniinchi.JniInchiBond;
+import net.sf.jniinchi.JniInchiOutputStructure;
+
+/**
+ * Atom and bond tables decoded from an InChI, independent of the JNI output
+ * object. Used by {@link InChIToStructure} to build a CMLMolecule.
+ */
+final class InChIStructure {
+
+    final INCHI_RET returnStatus;
+
+    final String message;
+
+    final String log;
+
+    final long[][] warningFlags;
+
+    final String[] elementTypes;
+
+    final int[] charges;
+
+    final int[] implicitH;
+
+    final int[] bondAtoms0;
+
+    final int[] bondAtoms1;
+
+    final INCHI_BOND_TYPE[] bondTypes;
+
+    InChIStructure(INCHI_RET returnStatus, String message, String log,
+            long[][] warningFlags, String[] elementTypes, int[] charges,
+            int[] implicitH, int[] bondAtoms0, int[] bondAtoms1,
+            INCHI_BOND_TYPE[] bondTypes) {
+        this.returnStatus = returnStatus;
+        this.message = message;
+        this.log = log;
+        this.warningFlags = warningFlags;
+        this.elementTypes = elementTypes;
+        this.charges = charges;
+        this.implicitH = implicitH;
+        this.bondAtoms0 = bondAtoms0;
+        this.bondAtoms1 = bondAtoms1;
+        this.bondTypes = bondTypes;
+    }
+
+    static InChIStructure fromOutput(JniInchiOutputStructure output) {
+        int atomCount = output.getNumAtoms();
+        String[] elementTypes = new String[atomCount];
+        int[] charges = new int[atomCount];
+        int[] implicitH = new int[atomCount];
+        Map<JniInchiAtom, Integer> atomIndex = new HashMap<JniInchiAtom, Integer>();
+        for (int i = 0; i < atomCount; i++) {
+            JniInchiAtom atom = output.getAtom(i);
+            atomIndex.put(atom, i);
+            elementTypes[i] = atom.getElementType();
+            charges[i] = atom.getCharge();
+            implicitH[i] = atom.getImplicitH();
+        }
+        int bondCount = output.getNumBonds();
+        int[] bondAtoms0 = new int[bondCount];
+        int[] bondAtoms1 = new int[bondCount];
+        INCHI_BOND_TYPE[] bondTypes = new INCHI_BOND_TYPE[bondCount];
+        for (int i = 0; i < bondCount; i++) {
+            JniInchiBond bond = output.getBond(i);
+            bondAtoms0[i] = atomIndex.get(bond.getOriginAtom());
+            bondAtoms1[i] = atomIndex.get(bond.getTargetAtom());
+            bondTypes[i] = bond.getBondType();
+        }
+        return new InChIStructure(output.getReturnStatus(),
+                output.getMessage(), output.getLog(), output.getWarningFlags(),
+                elementTypes, charges, implicitH, bondAtoms0, bondAtoms1,
+                bondTypes);
+    }
+
+    int getAtomCount() {
+        return elementTypes.length;
+    }
+
+    int getBondCount() {
+        return bondTypes.length;
+    }
+
+}
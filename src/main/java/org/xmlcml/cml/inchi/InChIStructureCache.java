@@ -0,0 +1,118 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+/**
+ * <p>
+ * Bounded LRU cache of InChIs decoded by {@link InChIToStructure}, keyed on
+ * the InChI and option string. It holds the atom and bond tables returned by
+ * the library rather than CMLMolecules, so each InChIToStructure still gets
+ * a fresh molecule of its own but skips the native call.
+ *
+ * <p>
+ * One cache may be shared by any number of threads and factories; see
+ * {@link InChIGeneratorFactory#setStructureCache(InChIStructureCache)}.
+ */
+public class InChIStructureCache {
+
+    private final LruCache<Key, InChIStructure> cache;
+
+    /**
+     * @param maxEntries  number of decoded InChIs to keep
+     */
+    public InChIStructureCache(int maxEntries) {
+        cache = new LruCache<Key, InChIStructure>(maxEntries);
+    }
+
+    InChIStructure get(String inchi, String options) {
+        return cache.get(new Key(inchi, options));
+    }
+
+    void put(String inchi, String options, InChIStructure structure) {
+        cache.put(new Key(inchi, options), structure);
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHitCount() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return number of lookups that had to call InChI
+     */
+    public long getMissCount() {
+        return cache.getMisses();
+    }
+
+    /**
+     * @return number of entries dropped to make room
+     */
+    public long getEvictionCount() {
+        return cache.getEvictions();
+    }
+
+    /**
+     * @return number of decoded InChIs currently held
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return maximum number of decoded InChIs held
+     */
+    public int getMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    /**
+     * Drops all entries. The counters are kept.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private static final class Key {
+
+        private final String inchi;
+
+        private final String options;
+
+        Key(String inchi, String options) {
+            this.inchi = inchi;
+            this.options = options == null ? "" : options;
+        }
+
+        @Override
+        public int hashCode() {
+            return inchi.hashCode() * 31 + options.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return inchi.equals(other.inchi) && options.equals(other.options);
+        }
+
+    }
+
+}
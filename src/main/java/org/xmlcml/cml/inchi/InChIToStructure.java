@@ -16,18 +16,12 @@
 
 package org.xmlcml.cml.inchi;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import net.sf.jniinchi.INCHI_BOND_TYPE;
 import net.sf.jniinchi.INCHI_RET;
-import net.sf.jniinchi.JniInchiAtom;
-import net.sf.jniinchi.JniInchiBond;
-import net.sf.jniinchi.JniInchiException;
 import net.sf.jniinchi.JniInchiInputInchi;
 import net.sf.jniinchi.JniInchiOutputStructure;
-import net.sf.jniinchi.JniInchiWrapper;
 
 import org.xmlcml.cml.base.CMLConstants;
 import org.xmlcml.cml.element.CMLAtom;
@@ -66,24 +60,43 @@ import org.xmlcml.molutil.ChemicalElement.AS;
  */
 public class InChIToStructure implements CMLConstants {
 	
+	protected String inchi;
+	
+	protected String options;
+	
+	/**
+	 * Input to the library, set only when InChI runs in this JVM with no
+	 * structure cache in front of it; otherwise null.
+	 * 
+	 * @deprecated since 1.1, use {@link #inchi} and {@link #options}
+	 */
+	@Deprecated
 	protected JniInchiInputInchi input;
 	
+	/**
+	 * Output of the library, set as {@link #input}; otherwise null.
+	 * 
+	 * @deprecated since 1.1, structures may come from worker processes or
+	 *             a cache; use {@link #getMolecule()} and the getters
+	 */
+	@Deprecated
 	protected JniInchiOutputStructure output;
 	
+	private InChIStructure structure;
+	
 	protected CMLMolecule molecule;
 	
+	private final InChIEngine engine;
+
+	private final InChIMetricsListener listener;
+	
 	/**
 	 * Constructor. Generates CMLMolecule from InChI.
 	 * @param inchi
 	 * @throws RuntimeException
 	 */
 	public InChIToStructure(String inchi) {
-		try {
-			input = new JniInchiInputInchi(inchi, S_EMPTY);
-		} catch (JniInchiException jie) {
-			throw new RuntimeException("Failed to convert InChI to molecule: " + jie.getMessage());
-		}
-        generateCMLMoleculeFromInchi();
+		this(inchi, S_EMPTY);
 	}
 	
 	/**
@@ -93,12 +106,7 @@ public class InChIToStructure implements CMLConstants {
 	 * @throws RuntimeException
 	 */
 	public InChIToStructure(String inchi, String options) {
-		try {
-			input = new JniInchiInputInchi(inchi, options);
-		} catch (JniInchiException jie) {
-			throw new RuntimeException("Failed to convert InChI to molecule: " + jie.getMessage());
-		}
-        generateCMLMoleculeFromInchi();
+		this(inchi, options, NativeInChIEngine.INSTANCE);
 	}
 	
 	/**
@@ -108,42 +116,65 @@ public class InChIToStructure implements CMLConstants {
 	 * @throws RuntimeException
 	 */
 	public InChIToStructure(String inchi, List<String> options) {
-		try {
-			input = new JniInchiInputInchi(inchi, options);
-		} catch (JniInchiException jie) {
-			throw new RuntimeException("Failed to convert InChI to molecule: " + jie.getMessage());
-		}
+		this(inchi, toOptionString(options));
+	}
+	
+	InChIToStructure(String inchi, String options, InChIEngine engine) {
+		this(inchi, options, engine, null);
+	}
+
+	InChIToStructure(String inchi, String options, InChIEngine engine, InChIMetricsListener listener) {
+		this.inchi = inchi;
+		this.options = options;
+		this.engine = engine;
+		this.listener = listener;
         generateCMLMoleculeFromInchi();
 	}
 	
+	/**
+	 * @param options  INCHI_OPTIONs or option strings; callers have long
+	 *                 passed INCHI_OPTIONs through the raw List
+	 * @throws IllegalArgumentException for an unrecognised option
+	 */
+	static String toOptionString(List<?> options) {
+		return InChIOptions.valueOf(options).toString();
+	}
+	
 	protected void generateCMLMoleculeFromInchi() {
-		try {
-			output = JniInchiWrapper.getStructureFromInchi(input);
-        } catch (JniInchiException jie) {
-        	throw new RuntimeException("Failed to convert InChI to molecule: " + jie.getMessage());
-        }
+		if (listener != null) {
+			listener.structureStarted(inchi, options);
+		}
+		if (engine instanceof NativeInChIEngine) {
+			// fills the deprecated fields for subclasses that read them
+			NativeInChIEngine nativeEngine = (NativeInChIEngine) engine;
+			input = NativeInChIEngine.toInput(inchi, options);
+			output = nativeEngine.getStructureOutput(input);
+			structure = nativeEngine.toStructure(output);
+		} else {
+			structure = engine.getStructure(inchi, options);
+		}
+		long start = listener == null ? 0 : System.nanoTime();
 		
         molecule = new CMLMolecule();
         
-        Map<JniInchiAtom, CMLAtom> inchiCmlAtomMap = new HashMap<JniInchiAtom, CMLAtom>();
+        CMLAtom[] atoms = new CMLAtom[structure.getAtomCount()];
         
-        for (int i = 0; i < output.getNumAtoms(); i ++) {
-        	JniInchiAtom iAt = output.getAtom(i);
+        for (int i = 0; i < atoms.length; i ++) {
         	CMLAtom cAt = new CMLAtom();
         	
-        	inchiCmlAtomMap.put(iAt, cAt);
+        	atoms[i] = cAt;
         	
         	cAt.setId("a" + i);
-        	cAt.setElementType(iAt.getElementType());
+        	cAt.setElementType(structure.elementTypes[i]);
         	
         	// Ignore coordinates - all zero
         	
-        	int charge = iAt.getCharge();
+        	int charge = structure.charges[i];
         	if (charge != 0) {
         		cAt.setFormalCharge(charge);
         	}
         	
-        	int numH = iAt.getImplicitH();
+        	int numH = structure.implicitH[i];
         	if (numH != 0) {
         		cAt.setHydrogenCount(numH);
         	}
@@ -151,14 +182,12 @@ public class InChIToStructure implements CMLConstants {
         	molecule.addAtom(cAt);
         }
         
-        for (int i = 0; i < output.getNumBonds(); i ++) {
-        	JniInchiBond iBo = output.getBond(i);
-        	
-        	CMLAtom atO = inchiCmlAtomMap.get(iBo.getOriginAtom());
-        	CMLAtom atT = inchiCmlAtomMap.get(iBo.getTargetAtom());
+        for (int i = 0; i < structure.getBondCount(); i ++) {
+        	CMLAtom atO = atoms[structure.bondAtoms0[i]];
+        	CMLAtom atT = atoms[structure.bondAtoms1[i]];
         	CMLBond cBo = new CMLBond(atO, atT);
         	
-        	INCHI_BOND_TYPE type = iBo.getBondType();
+        	INCHI_BOND_TYPE type = structure.bondTypes[i];
         	if (type == INCHI_BOND_TYPE.SINGLE) {
         		cBo.setOrder(CMLBond.SINGLE_S);
         	} else if (type == INCHI_BOND_TYPE.DOUBLE) {
@@ -194,6 +223,11 @@ public class InChIToStructure implements CMLConstants {
 	        	}
         	}
         }
+		if (listener != null) {
+			listener.phaseCompleted(InChIMetricsListener.Phase.BUILD, System.nanoTime() - start);
+			listener.structureGenerated(structure.returnStatus,
+					structure.getAtomCount(), structure.getBondCount());
+		}
 	}
 	
 	/**
@@ -212,7 +246,7 @@ public class InChIToStructure implements CMLConstants {
      * @return status
      */
     public INCHI_RET getReturnStatus() {
-        return(output.getReturnStatus());
+        return(structure.returnStatus);
     }
     
     /**
@@ -220,7 +254,7 @@ public class InChIToStructure implements CMLConstants {
      * @return message
      */
     public String getMessage() {
-        return(output.getMessage());
+        return(structure.message);
     }
     
     /**
@@ -228,7 +262,7 @@ public class InChIToStructure implements CMLConstants {
      * @return log
      */
     public String getLog() {
-        return(output.getLog());
+        return(structure.log);
     }
 	
     /**
@@ -239,10 +273,19 @@ public class InChIToStructure implements CMLConstants {
 	 * <br>x=1 => Disconnected layer if Reconnected layer is present
 	 * <br>y=1 => Main layer or Mobile-H
 	 * <br>y=0 => Fixed-H layer
-     * @return flags
+     * @return flags, a copy the caller may change
 	 */
     public long[][] getWarningFlags() {
-    	return(output.getWarningFlags());
+        long[][] flags = structure.warningFlags;
+        if (flags == null) {
+            return null;
+        }
+        // the structure may be shared with other callers through a cache
+        long[][] copy = new long[flags.length][];
+        for (int i = 0; i < flags.length; i++) {
+            copy[i] = flags[i] == null ? null : flags[i].clone();
+        }
+        return(copy);
     }
 
 }
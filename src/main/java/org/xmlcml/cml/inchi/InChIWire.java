@@ -0,0 +1,386 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import net.sf.jniinchi.INCHI_BOND_STEREO;
+import net.sf.jniinchi.INCHI_BOND_TYPE;
+import net.sf.jniinchi.INCHI_PARITY;
+import net.sf.jniinchi.INCHI_RADICAL;
+import net.sf.jniinchi.INCHI_RET;
+import net.sf.jniinchi.JniInchiAtom;
+import net.sf.jniinchi.JniInchiBond;
+import net.sf.jniinchi.JniInchiException;
+import net.sf.jniinchi.JniInchiInput;
+import net.sf.jniinchi.JniInchiStereo0D;
+
+/**
+ * <p>
+ * Compact binary encoding of InChI requests and results, used on the pipes
+ * between {@link InChIWorkerPool} and its {@link InChIWorker} processes.
+ *
+ * <p>
+ * Every message is a frame: an int length followed by that many bytes, the
+ * first of which is the message type (or, for replies, the status). Enums are
+ * written as ordinals, which is safe because parent and worker always run
+ * from the same classpath.
+ */
+final class InChIWire {
+
+    static final byte GET_INCHI = 1;
+
+    static final byte GET_STRUCTURE = 2;
+
+    static final byte GET_INCHI_KEYS = 3;
+
+    static final byte OK = 0;
+
+    static final byte FAILED = 1;
+
+    static final InChIResult.Detail[] DETAILS = InChIResult.Detail.values();
+
+    private static final INCHI_RET[] RETS = INCHI_RET.values();
+
+    private static final INCHI_RADICAL[] RADICALS = INCHI_RADICAL.values();
+
+    private static final INCHI_BOND_TYPE[] BOND_TYPES = INCHI_BOND_TYPE.values();
+
+    private static final INCHI_BOND_STEREO[] BOND_STEREOS = INCHI_BOND_STEREO.values();
+
+    private static final INCHI_PARITY[] PARITIES = INCHI_PARITY.values();
+
+    private InChIWire() {
+    }
+
+    static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    /**
+     * @return the frame, or null at end of stream
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException eof) {
+            return null;
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    static byte[] encodeInput(JniInchiInput input, String options, InChIResult.Detail detail) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 48 * input.getNumAtoms());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(GET_INCHI);
+            out.writeByte(detail.ordinal());
+            out.writeUTF(options == null ? "" : options);
+
+            int atomCount = input.getNumAtoms();
+            Map<JniInchiAtom, Integer> atomIndex = new IdentityHashMap<JniInchiAtom, Integer>(atomCount * 2);
+            out.writeShort(atomCount);
+            for (int i = 0; i < atomCount; i++) {
+                JniInchiAtom atom = input.getAtom(i);
+                atomIndex.put(atom, i);
+                out.writeUTF(atom.getElementType());
+                out.writeDouble(atom.getX());
+                out.writeDouble(atom.getY());
+                out.writeDouble(atom.getZ());
+                out.writeByte(atom.getCharge());
+                INCHI_RADICAL radical = atom.getRadical();
+                out.writeByte(radical == null ? 0 : radical.ordinal());
+                out.writeShort(atom.getIsotopicMass());
+                out.writeByte(atom.getImplicitH());
+            }
+
+            int bondCount = input.getNumBonds();
+            out.writeShort(bondCount);
+            for (int i = 0; i < bondCount; i++) {
+                JniInchiBond bond = input.getBond(i);
+                out.writeShort(atomIndex.get(bond.getOriginAtom()));
+                out.writeShort(atomIndex.get(bond.getTargetAtom()));
+                out.writeByte(bond.getBondType().ordinal());
+                out.writeByte(bond.getBondStereo().ordinal());
+            }
+
+            int stereoCount = input.getNumStereo0D();
+            out.writeShort(stereoCount);
+            for (int i = 0; i < stereoCount; i++) {
+                JniInchiStereo0D stereo = input.getStereo0D(i);
+                JniInchiAtom central = stereo.getCentralAtom();
+                out.writeShort(central == null ? -1 : atomIndex.get(central));
+                JniInchiAtom[] neighbours = stereo.getNeighbors();
+                for (int j = 0; j < 4; j++) {
+                    out.writeShort(atomIndex.get(neighbours[j]));
+                }
+                out.writeByte(stereo.getParity().ordinal());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to encode InChI input", ioe);
+        }
+    }
+
+    static JniInchiInput decodeInput(DataInputStream in) throws IOException, JniInchiException {
+        JniInchiInput input = new JniInchiInput(in.readUTF());
+
+        int atomCount = in.readShort();
+        JniInchiAtom[] atoms = new JniInchiAtom[atomCount];
+        for (int i = 0; i < atomCount; i++) {
+            String el = in.readUTF();
+            double x = in.readDouble();
+            double y = in.readDouble();
+            double z = in.readDouble();
+            JniInchiAtom atom = input.addAtom(new JniInchiAtom(x, y, z, el));
+            atom.setCharge(in.readByte());
+            atom.setRadical(RADICALS[in.readByte()]);
+            atom.setIsotopicMass(in.readShort());
+            atom.setImplicitH(in.readByte());
+            atoms[i] = atom;
+        }
+
+        int bondCount = in.readShort();
+        for (int i = 0; i < bondCount; i++) {
+            JniInchiAtom at0 = atoms[in.readShort()];
+            JniInchiAtom at1 = atoms[in.readShort()];
+            input.addBond(new JniInchiBond(at0, at1, BOND_TYPES[in.readByte()], BOND_STEREOS[in.readByte()]));
+        }
+
+        int stereoCount = in.readShort();
+        for (int i = 0; i < stereoCount; i++) {
+            int central = in.readShort();
+            JniInchiAtom at0 = atoms[in.readShort()];
+            JniInchiAtom at1 = atoms[in.readShort()];
+            JniInchiAtom at2 = atoms[in.readShort()];
+            JniInchiAtom at3 = atoms[in.readShort()];
+            INCHI_PARITY parity = PARITIES[in.readByte()];
+            if (central < 0) {
+                input.addStereo0D(JniInchiStereo0D.createNewDoublebondStereo0D(at0, at1, at2, at3, parity));
+            } else {
+                input.addStereo0D(JniInchiStereo0D.createNewTetrahedralStereo0D(atoms[central], at0, at1, at2, at3, parity));
+            }
+        }
+        return input;
+    }
+
+    static byte[] encodeResult(InChIResult result) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OK);
+            out.writeByte(result.getReturnStatus().ordinal());
+            writeString(out, result.getInchi());
+            writeString(out, result.getAuxInfo());
+            writeString(out, result.getMessage());
+            writeString(out, result.getLog());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to encode InChI result", ioe);
+        }
+    }
+
+    static InChIResult decodeResult(DataInputStream in) throws IOException {
+        INCHI_RET ret = RETS[in.readByte()];
+        return new InChIResult(ret, readString(in), readString(in),
+                readString(in), readString(in));
+    }
+
+    static byte[] encodeStructureRequest(String inchi, String options) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(GET_STRUCTURE);
+            writeString(out, inchi);
+            writeString(out, options);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to encode InChI", ioe);
+        }
+    }
+
+    static byte[] encodeStructure(InChIStructure structure) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OK);
+            out.writeByte(structure.returnStatus.ordinal());
+            writeString(out, structure.message);
+            writeString(out, structure.log);
+            long[][] flags = structure.warningFlags;
+            out.writeByte(flags == null ? -1 : flags.length);
+            if (flags != null) {
+                for (long[] row : flags) {
+                    out.writeByte(row.length);
+                    for (long flag : row) {
+                        out.writeLong(flag);
+                    }
+                }
+            }
+            out.writeShort(structure.getAtomCount());
+            for (int i = 0; i < structure.getAtomCount(); i++) {
+                out.writeUTF(structure.elementTypes[i]);
+                out.writeByte(structure.charges[i]);
+                out.writeByte(structure.implicitH[i]);
+            }
+            out.writeShort(structure.getBondCount());
+            for (int i = 0; i < structure.getBondCount(); i++) {
+                out.writeShort(structure.bondAtoms0[i]);
+                out.writeShort(structure.bondAtoms1[i]);
+                out.writeByte(structure.bondTypes[i].ordinal());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to encode structure", ioe);
+        }
+    }
+
+    static InChIStructure decodeStructure(DataInputStream in) throws IOException {
+        INCHI_RET ret = RETS[in.readByte()];
+        String message = readString(in);
+        String log = readString(in);
+        int rows = in.readByte();
+        long[][] flags = null;
+        if (rows >= 0) {
+            flags = new long[rows][];
+            for (int i = 0; i < rows; i++) {
+                flags[i] = new long[in.readByte()];
+                for (int j = 0; j < flags[i].length; j++) {
+                    flags[i][j] = in.readLong();
+                }
+            }
+        }
+        int atomCount = in.readShort();
+        String[] elementTypes = new String[atomCount];
+        int[] charges = new int[atomCount];
+        int[] implicitH = new int[atomCount];
+        for (int i = 0; i < atomCount; i++) {
+            elementTypes[i] = in.readUTF();
+            charges[i] = in.readByte();
+            implicitH[i] = in.readByte();
+        }
+        int bondCount = in.readShort();
+        int[] bondAtoms0 = new int[bondCount];
+        int[] bondAtoms1 = new int[bondCount];
+        INCHI_BOND_TYPE[] bondTypes = new INCHI_BOND_TYPE[bondCount];
+        for (int i = 0; i < bondCount; i++) {
+            bondAtoms0[i] = in.readShort();
+            bondAtoms1[i] = in.readShort();
+            bondTypes[i] = BOND_TYPES[in.readByte()];
+        }
+        return new InChIStructure(ret, message, log, flags, elementTypes,
+                charges, implicitH, bondAtoms0, bondAtoms1, bondTypes);
+    }
+
+    static byte[] encodeKeysRequest(String[] inchis) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(GET_INCHI_KEYS);
+            writeStrings(out, inchis);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to encode InChIs", ioe);
+        }
+    }
+
+    static byte[] encodeKeys(String[] keys) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OK);
+            writeStrings(out, keys);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to encode InChIKeys", ioe);
+        }
+    }
+
+    static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    static byte[] encodeFailure(String message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FAILED);
+            writeString(out, message);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to encode failure", ioe);
+        }
+    }
+
+    static DataInputStream open(byte[] frame) {
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    /**
+     * Strings such as AuxInfo can exceed the 64k limit of writeUTF.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] utf8 = s.getBytes("UTF-8");
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, "UTF-8");
+    }
+
+}
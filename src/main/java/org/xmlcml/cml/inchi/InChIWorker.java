@@ -0,0 +1,92 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.sf.jniinchi.JniInchiWrapper;
+import net.sf.jniinchi.LoadNativeLibraryException;
+
+/**
+ * <p>
+ * Entry point of the child JVMs started by {@link InChIWorkerPool}. Each one
+ * loads its own copy of the InChI library, reads requests from stdin and
+ * writes replies to stdout until stdin is closed.
+ *
+ * <p>
+ * Not intended to be run by hand.
+ */
+public final class InChIWorker {
+
+    private InChIWorker() {
+    }
+
+    /**
+     * @param args ignored
+     * @throws IOException if the pipe to the parent breaks
+     */
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out)));
+        // stdout carries the protocol; anything else printed goes to stderr
+        System.setOut(System.err);
+
+        try {
+            JniInchiWrapper.loadLibrary();
+        } catch (LoadNativeLibraryException lnle) {
+            System.err.println("Unable to load native code; " + lnle.getMessage());
+            System.exit(1);
+        }
+
+        byte[] request;
+        while ((request = InChIWire.readFrame(in)) != null) {
+            InChIWire.writeFrame(out, handle(request));
+        }
+    }
+
+    static byte[] handle(byte[] request) {
+        try {
+            DataInputStream in = InChIWire.open(request);
+            byte type = in.readByte();
+            if (type == InChIWire.GET_INCHI) {
+                InChIResult.Detail detail = InChIWire.DETAILS[in.readByte()];
+                return InChIWire.encodeResult(NativeInChIEngine.INSTANCE
+                        .getInchi(InChIWire.decodeInput(in), null, detail, 0));
+            } else if (type == InChIWire.GET_STRUCTURE) {
+                String inchi = InChIWire.readString(in);
+                String options = InChIWire.readString(in);
+                return InChIWire.encodeStructure(NativeInChIEngine.INSTANCE
+                        .getStructure(inchi, options));
+            } else if (type == InChIWire.GET_INCHI_KEYS) {
+                return InChIWire.encodeKeys(NativeInChIEngine.INSTANCE
+                        .getInchiKeys(InChIWire.readStrings(in)));
+            } else {
+                return InChIWire.encodeFailure("Unknown request type: " + type);
+            }
+        } catch (Exception e) {
+            return InChIWire.encodeFailure(e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,385 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jniinchi.JniInchiInput;
+
+/**
+ * <p>
+ * Runs the InChI library in a fixed number of child JVMs ({@link InChIWorker}).
+ * The library is not reentrant, so JniInchiWrapper only lets one thread in
+ * per JVM; each worker process has its own copy, so up to <code>size</code>
+ * calls run at once.
+ *
+ * <p>
+ * A worker whose pipe breaks is killed and started again on its next use.
+ * So is a worker that overruns the timeout of an InChI call, so that a
+ * structure on which the library hangs costs one worker for the length of
+ * the timeout rather than the pool for good. Once the pool is closed no
+ * worker is started again.
+ */
+final class InChIWorkerPool implements InChIEngine {
+
+    /**
+     * Kills workers whose calls overrun. Shared by all pools.
+     */
+    private static final ScheduledExecutorService WATCHDOG =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "inchi-worker-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** class whose main method each child JVM runs */
+    private final Class<?> workerMain;
+
+    private final List<Worker> workers;
+
+    private final BlockingQueue<Worker> idle;
+
+    private volatile boolean closed;
+
+    private volatile InChIMetricsListener listener;
+
+    /**
+     * Starts the worker processes.
+     *
+     * @param size number of workers
+     * @throws RuntimeException if a worker cannot be started
+     */
+    InChIWorkerPool(int size) {
+        this(size, InChIWorker.class);
+    }
+
+    /**
+     * @param size          number of workers
+     * @param workerMain    class each child JVM runs, speaking the protocol
+     *                      of {@link InChIWorker}
+     * @throws RuntimeException if a worker cannot be started
+     */
+    InChIWorkerPool(int size, Class<?> workerMain) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Need at least one InChI worker: " + size);
+        }
+        this.workerMain = workerMain;
+        workers = new ArrayList<Worker>(size);
+        idle = new ArrayBlockingQueue<Worker>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                Worker worker = new Worker();
+                worker.start();
+                workers.add(worker);
+                idle.add(worker);
+            }
+        } catch (IOException ioe) {
+            close();
+            throw new RuntimeException("Unable to start InChI worker: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    public boolean isParallel() {
+        return true;
+    }
+
+    /**
+     * The timeout includes any wait for a free worker.
+     */
+    public InChIResult getInchi(JniInchiInput input, String options, InChIResult.Detail detail, long timeout) {
+        try {
+            long start = listener == null ? 0 : System.nanoTime();
+            byte[] request = InChIWire.encodeInput(input, options, detail);
+            phase(InChIMetricsListener.Phase.MARSHAL, start);
+            DataInputStream in = call(request, timeout);
+            start = listener == null ? 0 : System.nanoTime();
+            InChIResult result = InChIWire.decodeResult(in);
+            phase(InChIMetricsListener.Phase.MARSHAL, start);
+            return result;
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to generate InChI: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    public InChIStructure getStructure(String inchi, String options) {
+        try {
+            DataInputStream in = call(InChIWire.encodeStructureRequest(inchi, options), 0);
+            long start = listener == null ? 0 : System.nanoTime();
+            InChIStructure structure = InChIWire.decodeStructure(in);
+            phase(InChIMetricsListener.Phase.MARSHAL, start);
+            return structure;
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to convert InChI to molecule: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * The whole batch goes to one worker.
+     */
+    public String[] getInchiKeys(String[] inchis) {
+        try {
+            return InChIWire.readStrings(call(InChIWire.encodeKeysRequest(inchis), 0));
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to generate InChIKey: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * @param listener  told the time of each phase, or null
+     */
+    void setListener(InChIMetricsListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the time now, to start the next phase
+     */
+    private long phase(InChIMetricsListener.Phase phase, long start) {
+        InChIMetricsListener listener = this.listener;
+        if (listener == null) {
+            return 0;
+        }
+        if (start == 0) {
+            // listener set part way through the call
+            return System.nanoTime();
+        }
+        long now = System.nanoTime();
+        listener.phaseCompleted(phase, now - start);
+        return now;
+    }
+
+    /**
+     * @return number of worker processes
+     */
+    int size() {
+        return workers.size();
+    }
+
+    /**
+     * Sends a request to the next free worker and returns its reply,
+     * positioned after the status byte.
+     *
+     * @param timeout   milliseconds, 0 for no limit
+     * @throws InChITimeoutException if the timeout passes; the worker is
+     *             killed
+     */
+    private DataInputStream call(byte[] request, long timeout) throws IOException {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        long start = listener == null ? 0 : System.nanoTime();
+        Worker worker = take(deadline, timeout);
+        try {
+            start = phase(InChIMetricsListener.Phase.LOCK_WAIT, start);
+            byte[] reply = worker.call(request, deadline);
+            phase(InChIMetricsListener.Phase.NATIVE, start);
+            DataInputStream in = InChIWire.open(reply);
+            if (in.readByte() == InChIWire.FAILED) {
+                throw new RuntimeException(InChIWire.readString(in));
+            }
+            return in;
+        } catch (IOException ioe) {
+            worker.stop();
+            if (closed) {
+                throw new IllegalStateException("InChI worker pool has been closed");
+            }
+            if (worker.killed) {
+                throw new InChITimeoutException("InChI did not finish within " + timeout + " ms");
+            }
+            throw ioe;
+        } finally {
+            idle.add(worker);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the pool is closed, before or while
+     *             waiting
+     */
+    private Worker take(long deadline, long timeout) {
+        if (closed) {
+            throw new IllegalStateException("InChI worker pool has been closed");
+        }
+        try {
+            Worker worker;
+            if (deadline == 0) {
+                worker = idle.take();
+            } else {
+                worker = idle.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (worker == null) {
+                    throw new InChITimeoutException("No InChI worker free within " + timeout + " ms");
+                }
+            }
+            if (closed) {
+                // hand it on, so that the next waiter wakes and fails too
+                idle.add(worker);
+                throw new IllegalStateException("InChI worker pool has been closed");
+            }
+            return worker;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for InChI worker", ie);
+        }
+    }
+
+    /**
+     * Kills all worker processes. Calls in progress, and callers waiting for
+     * a worker, fail with IllegalStateException; so do later calls.
+     */
+    void close() {
+        closed = true;
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+    }
+
+    private List<String> command() {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        String libraryPath = System.getProperty("java.library.path");
+        if (libraryPath != null) {
+            command.add("-Djava.library.path=" + libraryPath);
+        }
+        command.add(workerMain.getName());
+        return command;
+    }
+
+    private static void copyToStderr(final InputStream err) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[1024];
+                try {
+                    int n;
+                    while ((n = err.read(buffer)) != -1) {
+                        System.err.write(buffer, 0, n);
+                    }
+                } catch (IOException ioe) {
+                    // worker has gone
+                }
+            }
+        }, "inchi-worker-stderr");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * One child JVM and its pipes. Only used by the thread that took it from
+     * the idle queue, apart from {@link #stop()}.
+     */
+    private final class Worker {
+
+        private Process process;
+
+        private DataInputStream in;
+
+        private DataOutputStream out;
+
+        /** number of calls made, so that a late watchdog spares the next */
+        private int calls;
+
+        /** set if the current call was killed by the watchdog */
+        volatile boolean killed;
+
+        synchronized void start() throws IOException {
+            process = new ProcessBuilder(command()).start();
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            copyToStderr(process.getErrorStream());
+        }
+
+        /**
+         * @param deadline  System.nanoTime() by which the reply must have
+         *                  come, or 0 for none
+         */
+        byte[] call(byte[] request, long deadline) throws IOException {
+            DataInputStream in;
+            DataOutputStream out;
+            final int call;
+            synchronized (this) {
+                // checked under the lock, so that close() either sees the
+                // process started here or stops it being started
+                if (closed) {
+                    throw new IllegalStateException("InChI worker pool has been closed");
+                }
+                if (process == null) {
+                    start();
+                }
+                in = this.in;
+                out = this.out;
+                call = ++calls;
+                killed = false;
+            }
+            ScheduledFuture<?> watchdog = null;
+            if (deadline != 0) {
+                watchdog = WATCHDOG.schedule(new Runnable() {
+                    public void run() {
+                        kill(call);
+                    }
+                }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            try {
+                InChIWire.writeFrame(out, request);
+                byte[] reply = InChIWire.readFrame(in);
+                if (reply == null) {
+                    throw new EOFException("InChI worker exited");
+                }
+                return reply;
+            } finally {
+                if (watchdog != null) {
+                    watchdog.cancel(false);
+                }
+            }
+        }
+
+        private synchronized void kill(int call) {
+            if (call == calls && process != null) {
+                killed = true;
+                stop();
+            }
+        }
+
+        synchronized void stop() {
+            if (process != null) {
+                process.destroy();
+                process = null;
+                in = null;
+                out = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,194 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jniinchi.JniInchiInput;
+
+/**
+ * Sorts InChI calls into the lanes of an {@link InChILanes}, each with its
+ * own engine and limits. Structure and key calls go through the light lane.
+ * The timeout of an InChI call includes any wait for its lane.
+ */
+final class LanedInChIEngine implements InChIEngine {
+
+    private final InChILanes lanes;
+
+    private final Lane light;
+
+    private final Lane heavy;
+
+    /**
+     * @param lanes         thresholds and limits, read once
+     * @param lightEngine
+     * @param heavyEngine   may be the same as the light engine
+     */
+    LanedInChIEngine(InChILanes lanes, InChIEngine lightEngine, InChIEngine heavyEngine) {
+        this.lanes = lanes;
+        this.light = new Lane(InChILanes.Lane.LIGHT, lanes, lightEngine);
+        this.heavy = new Lane(InChILanes.Lane.HEAVY, lanes, heavyEngine);
+    }
+
+    public boolean isParallel() {
+        return light.engine.isParallel();
+    }
+
+    public InChIResult getInchi(JniInchiInput input, String options, InChIResult.Detail detail, long timeout) {
+        Lane lane = classify(input) == InChILanes.Lane.HEAVY ? heavy : light;
+        long remaining = lane.acquire(timeout);
+        try {
+            return lane.engine.getInchi(input, options, detail, remaining);
+        } finally {
+            lane.release();
+        }
+    }
+
+    public InChIStructure getStructure(String inchi, String options) {
+        light.acquire(0);
+        try {
+            return light.engine.getStructure(inchi, options);
+        } finally {
+            light.release();
+        }
+    }
+
+    public String[] getInchiKeys(String[] inchis) {
+        light.acquire(0);
+        try {
+            return light.engine.getInchiKeys(inchis);
+        } finally {
+            light.release();
+        }
+    }
+
+    InChILanes.Lane classify(JniInchiInput input) {
+        int atomCount = input.getNumAtoms();
+        if (atomCount >= lanes.getHeavyAtomCount()) {
+            return InChILanes.Lane.HEAVY;
+        }
+        return lanes.classify(atomCount, countRings(input));
+    }
+
+    /**
+     * @return bonds - atoms + connected components
+     */
+    private static int countRings(JniInchiInput input) {
+        int atomCount = input.getNumAtoms();
+        int bondCount = input.getNumBonds();
+        if (bondCount < atomCount) {
+            // a ring needs at least as many bonds as atoms
+            return 0;
+        }
+        Map<Object, Integer> index = new IdentityHashMap<Object, Integer>(atomCount * 2);
+        for (int i = 0; i < atomCount; i++) {
+            index.put(input.getAtom(i), i);
+        }
+        int[] parent = new int[atomCount];
+        for (int i = 0; i < atomCount; i++) {
+            parent[i] = i;
+        }
+        int components = atomCount;
+        for (int i = 0; i < bondCount; i++) {
+            int a = root(parent, index.get(input.getBond(i).getOriginAtom()));
+            int b = root(parent, index.get(input.getBond(i).getTargetAtom()));
+            if (a != b) {
+                parent[a] = b;
+                components--;
+            }
+        }
+        return bondCount - atomCount + components;
+    }
+
+    private static int root(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Admission control for one lane.
+     */
+    private static final class Lane {
+
+        private final InChILanes.Lane name;
+
+        private final InChIEngine engine;
+
+        private final Semaphore permits;
+
+        private final int queueLimit;
+
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        Lane(InChILanes.Lane name, InChILanes lanes, InChIEngine engine) {
+            this.name = name;
+            this.engine = engine;
+            int concurrency = lanes.getConcurrency(name);
+            this.permits = concurrency == InChILanes.UNLIMITED ? null : new Semaphore(concurrency, true);
+            this.queueLimit = lanes.getQueueLimit(name);
+        }
+
+        /**
+         * @param timeout   milliseconds to wait, 0 for no limit
+         * @return what is left of the timeout, at least 1; 0 if there was
+         *         no limit
+         * @throws RejectedExecutionException if the lane's queue is full
+         * @throws InChITimeoutException if the timeout passes first
+         */
+        long acquire(long timeout) {
+            if (permits == null || permits.tryAcquire()) {
+                return timeout;
+            }
+            if (waiting.incrementAndGet() > queueLimit) {
+                waiting.decrementAndGet();
+                throw new RejectedExecutionException("InChI " + name + " lane is full");
+            }
+            try {
+                if (timeout == 0) {
+                    permits.acquire();
+                    return 0;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new InChITimeoutException("No InChI " + name + " lane free within " + timeout + " ms");
+                }
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for InChI " + name + " lane", ie);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        void release() {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+
+    }
+
+}
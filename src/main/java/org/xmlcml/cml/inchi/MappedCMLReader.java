@@ -0,0 +1,518 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * <p>
+ * Splits a large CML file into its molecules so that they can be parsed on
+ * many threads. The file is memory-mapped in chunks, and the chunks are
+ * scanned in parallel for <code>&lt;molecule&gt;</code> start and end tags.
+ * The outermost molecules are grouped, in document order, into batches of
+ * about 64 KB, each a Callable that parses just those byte ranges with a
+ * {@link CMLMoleculeReader}. Chunks are scanned a few ahead of the
+ * iterator, so memory use does not depend on the size of the file.
+ *
+ * <p>
+ * The tags are found by their bytes, so the file must be in an encoding
+ * that keeps ASCII as single bytes, such as UTF-8 or ISO-8859-1, and
+ * must not have molecule tags inside comments or CDATA sections. Each
+ * molecule is parsed with the namespaces declared on the root element;
+ * declarations on elements between the root and a molecule are not seen.
+ *
+ * <p>
+ * {@link InChIPipeline#run(File, java.io.Writer)} uses this to feed
+ * {@link InChIGeneratorFactory}. The iterator is not thread-safe, but the
+ * Callables may be called on any thread.
+ */
+public class MappedCMLReader implements Iterable<Callable<List<CMLMolecule>>>, Closeable {
+
+    /** bytes scanned by each task */
+    static final int CHUNK_SIZE = 32 << 20;
+
+    /** bytes mapped beyond each chunk, for tags and molecules that cross its end */
+    static final int MARGIN = 1 << 20;
+
+    /** bytes of molecules parsed together */
+    static final int BATCH_SIZE = 64 << 10;
+
+    private static final String MOLECULE = "molecule";
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final ExecutorService executor;
+
+    private final String encoding;
+
+    private final byte[] prefix;
+
+    private final byte[] suffix;
+
+    private boolean iterated;
+
+    /**
+     * @param file      CML file
+     * @param executor  runs the scans of the chunks
+     * @throws RuntimeException if the file cannot be read
+     * @throws IllegalArgumentException if the file is in UTF-16 or UTF-32
+     */
+    public MappedCMLReader(File file, ExecutorService executor) {
+        this.file = file;
+        this.executor = executor;
+        String[] root = readRoot(file);
+        encoding = root[0];
+        if (encoding.toUpperCase().startsWith("UTF-16") || encoding.toUpperCase().startsWith("UTF-32")) {
+            throw new IllegalArgumentException("Cannot split CML in " + encoding + ": " + file);
+        }
+        try {
+            prefix = ("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?><split" + root[1] + ">").getBytes(encoding);
+            suffix = "</split>".getBytes(encoding);
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalArgumentException("Cannot split CML in " + encoding + ": " + file, uee);
+        }
+        try {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            size = channel.size();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to open " + file + ": " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * @return encoding of the file, and the namespace declarations of the
+     *         root element as attributes
+     */
+    private static String[] readRoot(File file) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // prolog
+            }
+            StringBuilder declarations = new StringBuilder();
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                String prefix = reader.getNamespacePrefix(i);
+                declarations.append(prefix == null || prefix.length() == 0 ? " xmlns" : " xmlns:" + prefix)
+                        .append("=\"").append(escape(reader.getNamespaceURI(i))).append('"');
+            }
+            String encoding = reader.getEncoding();
+            reader.close();
+            return new String[] { encoding == null ? "UTF-8" : encoding, declarations.toString() };
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to read " + file + ": " + ioe.getMessage(), ioe);
+        } catch (XMLStreamException xse) {
+            throw new RuntimeException("Failed to read CML: " + xse.getMessage(), xse);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // nothing more to read
+                }
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * @return readers of batches of consecutive outermost molecules, in
+     *         document order
+     * @throws IllegalStateException if called more than once
+     */
+    public Iterator<Callable<List<CMLMolecule>>> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("Molecules can only be iterated once");
+        }
+        iterated = true;
+        return new Splitter();
+    }
+
+    /**
+     * Closes the file. Mapped chunks are released as they are collected.
+     *
+     * @throws RuntimeException
+     */
+    public void close() {
+        try {
+            raf.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to close " + file + ": " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private MappedByteBuffer map(long position, long length) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to map " + file + ": " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Start and end tags found in one chunk, as pairs of longs: the offset
+     * of the start tag and -1, the offset just past an end tag and -2, or
+     * the offsets of the start and end of an empty element.
+     */
+    private final class Chunk implements Callable<Chunk> {
+
+        private final long start;
+
+        private final long end;
+
+        private final ByteBuffer buffer;
+
+        private long[] tags = new long[64];
+
+        private int tagCount;
+
+        Chunk(long start) {
+            this.start = start;
+            this.end = Math.min(size, start + CHUNK_SIZE);
+            this.buffer = map(start, Math.min(size, end + MARGIN) - start);
+        }
+
+        public Chunk call() {
+            int limit = (int) (end - start);
+            for (int i = 0; i < limit; i++) {
+                if (buffer.get(i) == '<') {
+                    scanTag(i);
+                }
+            }
+            return this;
+        }
+
+        private void scanTag(int lt) {
+            int i = lt + 1;
+            boolean endTag = i < buffer.limit() && buffer.get(i) == '/';
+            if (endTag) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < buffer.limit() && isNameChar(buffer.get(i))) {
+                if (buffer.get(i) == ':') {
+                    nameStart = i + 1;
+                }
+                i++;
+            }
+            if (i - nameStart != MOLECULE.length() || !matches(nameStart)) {
+                return;
+            }
+            int gt = findTagEnd(i);
+            if (endTag) {
+                add(start + gt + 1, -2);
+            } else if (buffer.get(gt - 1) == '/') {
+                add(start + lt, start + gt + 1);
+            } else {
+                add(start + lt, -1);
+            }
+        }
+
+        private boolean matches(int at) {
+            for (int j = 0; j < MOLECULE.length(); j++) {
+                if (buffer.get(at + j) != MOLECULE.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return offset of the &gt; closing the tag, skipping quoted
+         *         attribute values
+         */
+        private int findTagEnd(int from) {
+            byte quote = 0;
+            for (int i = from; i < buffer.limit(); i++) {
+                byte b = buffer.get(i);
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    return i;
+                }
+            }
+            throw new RuntimeException("Unterminated molecule tag at offset " + (start + from) + " in " + file);
+        }
+
+        private void add(long a, long b) {
+            if (tagCount + 2 > tags.length) {
+                long[] grown = new long[2 * tags.length];
+                System.arraycopy(tags, 0, grown, 0, tagCount);
+                tags = grown;
+            }
+            tags[tagCount++] = a;
+            tags[tagCount++] = b;
+        }
+
+        /**
+         * @return the molecule from start to end, within this chunk's
+         *         mapping if it fits
+         */
+        ByteBuffer slice(long from, long to) {
+            if (to - start > buffer.limit()) {
+                return map(from, to - from);
+            }
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) (from - start));
+            slice.limit((int) (to - start));
+            return slice;
+        }
+
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == ':' || b == '_' || b == '-' || b == '.' || b < 0;
+    }
+
+    /**
+     * Pairs up the tags of the chunks in order, keeping a few chunks
+     * scanning ahead, and groups the molecules into batches.
+     */
+    private final class Splitter implements Iterator<Callable<List<CMLMolecule>>> {
+
+        private final int ahead = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        private final LinkedList<Future<Chunk>> scans = new LinkedList<Future<Chunk>>();
+
+        private long nextChunk;
+
+        private Chunk chunk;
+
+        private int tag;
+
+        private int depth;
+
+        private Chunk openChunk;
+
+        private long openStart;
+
+        private Callable<List<CMLMolecule>> next;
+
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            List<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+            long bytes = 0;
+            while (bytes < BATCH_SIZE) {
+                ByteBuffer slice = nextSlice();
+                if (slice == null) {
+                    break;
+                }
+                slices.add(slice);
+                bytes += slice.remaining();
+            }
+            if (!slices.isEmpty()) {
+                next = new Batch(slices);
+            }
+            return next != null;
+        }
+
+        public Callable<List<CMLMolecule>> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Callable<List<CMLMolecule>> batch = next;
+            next = null;
+            return batch;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return bytes of the next outermost molecule, or null at the end
+         */
+        private ByteBuffer nextSlice() {
+            while (true) {
+                if (chunk == null || tag == chunk.tagCount) {
+                    chunk = nextChunk();
+                    tag = 0;
+                    if (chunk == null) {
+                        if (depth != 0) {
+                            throw new RuntimeException("Unclosed molecule at offset " + openStart + " in " + file);
+                        }
+                        return null;
+                    }
+                    continue;
+                }
+                long a = chunk.tags[tag++];
+                long b = chunk.tags[tag++];
+                if (b == -1) {
+                    if (depth++ == 0) {
+                        openChunk = chunk;
+                        openStart = a;
+                    }
+                } else if (b == -2) {
+                    if (depth == 0) {
+                        throw new RuntimeException("Unmatched molecule end tag before offset " + a + " in " + file);
+                    }
+                    if (--depth == 0) {
+                        ByteBuffer slice = openChunk.slice(openStart, a);
+                        openChunk = null;
+                        return slice;
+                    }
+                } else if (depth == 0) {
+                    return chunk.slice(a, b);
+                }
+            }
+        }
+
+        private Chunk nextChunk() {
+            while (scans.size() < ahead && nextChunk < size) {
+                scans.add(executor.submit(new Chunk(nextChunk)));
+                nextChunk += CHUNK_SIZE;
+            }
+            if (scans.isEmpty()) {
+                return null;
+            }
+            try {
+                return scans.removeFirst().get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while splitting " + file, ie);
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException("Failed to split " + file + ": " + cause.getMessage(), cause);
+            }
+        }
+
+    }
+
+    /**
+     * Parses the bytes of a run of molecules, joined and wrapped in an
+     * element declaring the root's namespaces, with one reader; making a
+     * StAX reader costs more than parsing a small molecule.
+     */
+    private final class Batch implements Callable<List<CMLMolecule>> {
+
+        private final List<ByteBuffer> slices;
+
+        Batch(List<ByteBuffer> slices) {
+            this.slices = slices;
+        }
+
+        public List<CMLMolecule> call() {
+            List<InputStream> parts = new ArrayList<InputStream>(slices.size() + 2);
+            parts.add(new ByteArrayInputStream(prefix));
+            for (ByteBuffer slice : slices) {
+                parts.add(new ByteBufferInputStream(slice));
+            }
+            parts.add(new ByteArrayInputStream(suffix));
+            CMLMoleculeReader reader = new CMLMoleculeReader(
+                    new SequenceInputStream(Collections.enumeration(parts)));
+            try {
+                List<CMLMolecule> molecules = new ArrayList<CMLMolecule>(slices.size());
+                for (CMLMolecule molecule = reader.next(); molecule != null; molecule = reader.next()) {
+                    molecules.add(molecule);
+                }
+                if (molecules.size() != slices.size()) {
+                    throw new RuntimeException("Failed to split " + file + ": found "
+                            + slices.size() + " molecules but parsed " + molecules.size());
+                }
+                return molecules;
+            } finally {
+                reader.close();
+            }
+        }
+
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
+}
@@ -0,0 +1,270 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+/**
+ * <p>
+ * A molecule held as columns of primitives, for producers that already have
+ * their structures as arrays. Pass it to
+ * {@link InChIGeneratorFactory#getInChIGenerator(MoleculeTable, InChIOptions)}
+ * to go straight to InChI without building a CMLMolecule.
+ *
+ * <p>
+ * Atoms are numbered from 0. Only the element column is required; the others
+ * may be left unset. The arrays are not copied, so they must not be changed
+ * while a generator is using the table.
+ */
+public class MoleculeTable {
+
+    /** bond order for an aromatic (alternating) bond */
+    public static final int AROMATIC = 4;
+
+    /** bond stereo: wedge, narrow end at the first atom, as in molfiles */
+    public static final int WEDGE_UP = 1;
+
+    /** bond stereo: double bond of unknown configuration, as in molfiles */
+    public static final int DOUBLE_EITHER = 3;
+
+    /** bond stereo: wavy single bond, as in molfiles */
+    public static final int WEDGE_EITHER = 4;
+
+    /** bond stereo: hash, narrow end at the first atom, as in molfiles */
+    public static final int WEDGE_DOWN = 6;
+
+    /**
+     * atom parity as in molfiles: looking with the highest numbered
+     * neighbour, or an implicit hydrogen, at the back, the other three
+     * neighbours are numbered clockwise
+     */
+    public static final int PARITY_ODD = 1;
+
+    /** atom parity as in molfiles: as {@link #PARITY_ODD}, anticlockwise */
+    public static final int PARITY_EVEN = 2;
+
+    /** atom parity as in molfiles: a stereocentre of unknown configuration */
+    public static final int PARITY_EITHER = 3;
+
+    /**
+     * added to a difference from the most abundant isotope, as in molfile
+     * atom blocks, to give an isotope that InChI works out
+     */
+    public static final int ISOTOPIC_SHIFT = 10000;
+
+    String id;
+
+    final String[] elements;
+
+    int[] charges;
+
+    int[] implicitH;
+
+    int[] isotopes;
+
+    int[] spinMultiplicities;
+
+    double[] x;
+
+    double[] y;
+
+    double[] z;
+
+    int[] bondAtoms0 = new int[0];
+
+    int[] bondAtoms1 = new int[0];
+
+    int[] bondOrders = new int[0];
+
+    int[] bondStereo;
+
+    int[] parities;
+
+    /** set by a reader for a record it could not turn into a table */
+    Problems problem;
+
+    /**
+     * @param elements  element symbol of each atom
+     */
+    public MoleculeTable(String[] elements) {
+        this.elements = elements;
+    }
+
+    /**
+     * @return id, as given by {@link #setId(String)}
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param id    name for the molecule; not passed to InChI
+     */
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the problem that stopped a reader making this table from its
+     *         record, or null; a generator reports it instead of calling
+     *         InChI
+     */
+    public Problems getProblem() {
+        return problem;
+    }
+
+    /**
+     * @return number of atoms
+     */
+    public int getAtomCount() {
+        return elements.length;
+    }
+
+    /**
+     * @return number of bonds
+     */
+    public int getBondCount() {
+        return bondOrders.length;
+    }
+
+    /**
+     * @param charges   formal charge of each atom
+     */
+    public void setCharges(int[] charges) {
+        checkLength(charges);
+        this.charges = charges;
+    }
+
+    /**
+     * @param implicitH  number of implicit hydrogens on each atom, not
+     *                   counting hydrogens present as atoms; -1 leaves it to
+     *                   InChI
+     */
+    public void setImplicitHydrogens(int[] implicitH) {
+        checkLength(implicitH);
+        this.implicitH = implicitH;
+    }
+
+    /**
+     * @param isotopes  mass number of each atom, 0 for natural abundance,
+     *                  or {@link #ISOTOPIC_SHIFT} plus a mass difference
+     */
+    public void setIsotopes(int[] isotopes) {
+        checkLength(isotopes);
+        this.isotopes = isotopes;
+    }
+
+    /**
+     * @param spinMultiplicities  spin multiplicity of each atom, 0 for none
+     *                            set; 1 to 3 are supported
+     */
+    public void setSpinMultiplicities(int[] spinMultiplicities) {
+        checkLength(spinMultiplicities);
+        this.spinMultiplicities = spinMultiplicities;
+    }
+
+    /**
+     * Sets atom coordinates. Without coordinates, InChI gets none, as for
+     * CML atoms lacking them.
+     *
+     * @param x
+     * @param y
+     * @param z  null for 2D coordinates
+     */
+    public void setCoordinates(double[] x, double[] y, double[] z) {
+        if ((x == null) != (y == null)) {
+            throw new IllegalArgumentException("Need both x and y coordinates");
+        }
+        checkLength(x);
+        checkLength(y);
+        checkLength(z);
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * @param atoms0    first atom of each bond
+     * @param atoms1    second atom of each bond
+     * @param orders    order of each bond: 1, 2, 3 or {@link #AROMATIC}
+     * @throws IllegalArgumentException for bad atom numbers or orders
+     */
+    public void setBonds(int[] atoms0, int[] atoms1, int[] orders) {
+        if (atoms0.length != orders.length || atoms1.length != orders.length) {
+            throw new IllegalArgumentException("Bond columns differ in length");
+        }
+        for (int i = 0; i < orders.length; i++) {
+            if (atoms0[i] < 0 || atoms0[i] >= elements.length
+                    || atoms1[i] < 0 || atoms1[i] >= elements.length) {
+                throw new IllegalArgumentException("Bond " + i + " refers to unknown atom");
+            }
+            if (orders[i] < 1 || orders[i] > AROMATIC) {
+                throw new IllegalArgumentException("Unsupported bond order: " + orders[i]);
+            }
+        }
+        this.bondAtoms0 = atoms0;
+        this.bondAtoms1 = atoms1;
+        this.bondOrders = orders;
+        this.bondStereo = null;
+    }
+
+    /**
+     * Sets wedges and wavy bonds, from which InChI works out stereo using
+     * the coordinates. Set after the bonds.
+     *
+     * @param stereo    stereo of each bond: 0 for none, {@link #WEDGE_UP},
+     *                  {@link #WEDGE_DOWN}, {@link #WEDGE_EITHER} or
+     *                  {@link #DOUBLE_EITHER}
+     * @throws IllegalArgumentException for unknown values
+     */
+    public void setBondStereo(int[] stereo) {
+        if (stereo.length != bondOrders.length) {
+            throw new IllegalArgumentException("Bond stereo has " + stereo.length
+                    + " values for " + bondOrders.length + " bonds");
+        }
+        for (int i = 0; i < stereo.length; i++) {
+            if (stereo[i] != 0 && stereo[i] != WEDGE_UP && stereo[i] != DOUBLE_EITHER
+                    && stereo[i] != WEDGE_EITHER && stereo[i] != WEDGE_DOWN) {
+                throw new IllegalArgumentException("Unsupported bond stereo: " + stereo[i]);
+            }
+        }
+        this.bondStereo = stereo;
+    }
+
+    /**
+     * Sets atom parities, which are passed to InChI only if there are no
+     * coordinates to work stereo out from. Neighbours are numbered by
+     * their order in the table.
+     *
+     * @param parities  parity of each atom: 0 for none, {@link #PARITY_ODD},
+     *                  {@link #PARITY_EVEN} or {@link #PARITY_EITHER}
+     */
+    public void setParities(int[] parities) {
+        checkLength(parities);
+        this.parities = parities;
+    }
+
+    private void checkLength(Object column) {
+        if (column == null) {
+            return;
+        }
+        int length = column instanceof int[] ? ((int[]) column).length : ((double[]) column).length;
+        if (length != elements.length) {
+            throw new IllegalArgumentException("Column has " + length
+                    + " values for " + elements.length + " atoms");
+        }
+    }
+
+}
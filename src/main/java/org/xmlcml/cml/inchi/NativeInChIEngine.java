@@ -0,0 +1,164 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.jniinchi.INCHI_KEY;
+import net.sf.jniinchi.JniInchiException;
+import net.sf.jniinchi.JniInchiInput;
+import net.sf.jniinchi.JniInchiInputInchi;
+import net.sf.jniinchi.JniInchiOutput;
+import net.sf.jniinchi.JniInchiOutputStructure;
+import net.sf.jniinchi.JniInchiOutputKey;
+import net.sf.jniinchi.JniInchiWrapper;
+
+/**
+ * Calls the InChI library in this JVM. JniInchiWrapper only lets one thread
+ * into the library at a time; calls from here queue on a lock of our own
+ * first, so that the time spent waiting can be measured.
+ */
+final class NativeInChIEngine implements InChIEngine {
+
+    static final NativeInChIEngine INSTANCE = new NativeInChIEngine(null);
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    private final InChIMetricsListener listener;
+
+    /**
+     * @param listener  told the time of each phase, or null
+     */
+    NativeInChIEngine(InChIMetricsListener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isParallel() {
+        return false;
+    }
+
+    /**
+     * A call into the library cannot be stopped, so a timeout is refused.
+     */
+    public InChIResult getInchi(JniInchiInput input, String options, InChIResult.Detail detail, long timeout) {
+        return toResult(getOutput(input, timeout), detail);
+    }
+
+    /**
+     * As {@link #getInchi(JniInchiInput, String, InChIResult.Detail, long)},
+     * but returns the library's own output.
+     */
+    JniInchiOutput getOutput(JniInchiInput input, long timeout) {
+        if (timeout > 0) {
+            throw new IllegalStateException("InChI timeouts need worker processes; see "
+                    + "InChIGeneratorFactory.startWorkers");
+        }
+        long start = listener == null ? 0 : System.nanoTime();
+        JniInchiOutput output;
+        LOCK.lock();
+        try {
+            start = phase(InChIMetricsListener.Phase.LOCK_WAIT, start);
+            output = JniInchiWrapper.getInchi(input);
+            phase(InChIMetricsListener.Phase.NATIVE, start);
+        } catch (JniInchiException jie) {
+            throw new RuntimeException("Failed to generate InChI: "
+                    + jie.getMessage());
+        } finally {
+            LOCK.unlock();
+        }
+        return output;
+    }
+
+    InChIResult toResult(JniInchiOutput output, InChIResult.Detail detail) {
+        long start = listener == null ? 0 : System.nanoTime();
+        InChIResult result = InChIResult.fromOutput(output, detail);
+        phase(InChIMetricsListener.Phase.MARSHAL, start);
+        return result;
+    }
+
+    public InChIStructure getStructure(String inchi, String options) {
+        return toStructure(getStructureOutput(toInput(inchi, options)));
+    }
+
+    static JniInchiInputInchi toInput(String inchi, String options) {
+        try {
+            return new JniInchiInputInchi(inchi, options);
+        } catch (JniInchiException jie) {
+            throw new RuntimeException("Failed to convert InChI to molecule: " + jie.getMessage());
+        }
+    }
+
+    /**
+     * As {@link #getStructure(String, String)}, but returns the library's
+     * own output.
+     */
+    JniInchiOutputStructure getStructureOutput(JniInchiInputInchi input) {
+        long start = listener == null ? 0 : System.nanoTime();
+        JniInchiOutputStructure output;
+        LOCK.lock();
+        try {
+            start = phase(InChIMetricsListener.Phase.LOCK_WAIT, start);
+            output = JniInchiWrapper.getStructureFromInchi(input);
+            phase(InChIMetricsListener.Phase.NATIVE, start);
+        } catch (JniInchiException jie) {
+            throw new RuntimeException("Failed to convert InChI to molecule: " + jie.getMessage());
+        } finally {
+            LOCK.unlock();
+        }
+        return output;
+    }
+
+    InChIStructure toStructure(JniInchiOutputStructure output) {
+        long start = listener == null ? 0 : System.nanoTime();
+        InChIStructure structure = InChIStructure.fromOutput(output);
+        phase(InChIMetricsListener.Phase.MARSHAL, start);
+        return structure;
+    }
+
+    public String[] getInchiKeys(String[] inchis) {
+        String[] keys = new String[inchis.length];
+        LOCK.lock();
+        try {
+            for (int i = 0; i < inchis.length; i++) {
+                if (inchis[i] != null) {
+                    JniInchiOutputKey output = JniInchiWrapper.getInchiKey(inchis[i]);
+                    if (output.getReturnStatus() == INCHI_KEY.OK) {
+                        keys[i] = output.getKey();
+                    }
+                }
+            }
+        } catch (JniInchiException jie) {
+            throw new RuntimeException("Failed to generate InChIKey: " + jie.getMessage());
+        } finally {
+            LOCK.unlock();
+        }
+        return keys;
+    }
+
+    /**
+     * @return the time now, to start the next phase
+     */
+    private long phase(InChIMetricsListener.Phase phase, long start) {
+        if (listener == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        listener.phaseCompleted(phase, now - start);
+        return now;
+    }
+
+}
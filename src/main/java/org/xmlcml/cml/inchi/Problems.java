@@ -18,12 +18,18 @@ package org.xmlcml.cml.inchi;
 
 /**
  * Enumeration of problems that arise during pre-processing before calculating
- * an InChI.
+ * an InChI, or that stop InChI returning a result.
  * 
  * @author Jim Downing
  * @since 5.4
  */
 public enum Problems {
     /** dewisott */
-    BOND_ORDER
+    BOND_ORDER,
+    /** an atom has a spin multiplicity other than 0 to 3 */
+    SPIN_MULTIPLICITY,
+    /** InChI did not finish within the timeout and was stopped */
+    TIMEOUT,
+    /** a record of an SD file could not be read as a molfile */
+    UNREADABLE_RECORD
 }
@@ -24,5 +24,21 @@ package org.xmlcml.cml.inchi;
  */
 public enum ProcessingOptions {
     /** dewisott */
-    USE_BONDS
+    USE_BONDS,
+    /**
+     * keep only the InChI and return status; AuxInfo is not generated and
+     * the message and log are dropped
+     */
+    INCHI_ONLY,
+    /** keep only the return status, as INCHI_ONLY but without the InChI */
+    STATUS_ONLY,
+    /** include the InChIKey in {@link InChIGenerator#getResult()} */
+    INCHI_KEY,
+    /**
+     * if the molecule already has an InChI identifier, stamped as made from
+     * the same input and options by the same library version, return it
+     * instead of calling InChI; appended identifiers replace stale ones and
+     * are stamped
+     */
+    INCREMENTAL
 }
@@ -0,0 +1,680 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+/**
+ * <p>
+ * Reads the records of an SD file, or a single molfile, straight into
+ * {@link MoleculeTable}s, without going through CML. V2000 and V3000
+ * connection tables are read: elements, coordinates, charges, isotopes,
+ * radicals, bond orders, wedges and atom parities, the last only being
+ * used by InChI when a record has no coordinates. An atom's valence, if
+ * given, fixes its implicit hydrogens; otherwise InChI adds them.
+ *
+ * <p>
+ * Records are read one at a time, so memory use does not depend on the
+ * size of the file. Each table's id is the title line of its record, or
+ * the first line of the data item named by {@link #setIdField(String)}.
+ * Given to
+ * {@link InChIGeneratorFactory#generateAll(SDFReader, InChIOptions, ProcessingOptions[], InChIResultSink)}
+ * or an {@link InChIPipeline}, records are split off on the calling thread
+ * and parsed on the extraction threads.
+ *
+ * <p>
+ * A record that cannot be read gives a table with no atoms that reports
+ * {@link Problems#UNREADABLE_RECORD} (see {@link MoleculeTable#getProblem()}),
+ * and reading carries on with the next record. Query features are not
+ * supported: a record with query bond types reports
+ * {@link Problems#BOND_ORDER}, while atom lists, Sgroups and other
+ * properties are skipped. Like
+ * {@link CMLMoleculeReader}, the reader can be iterated once and is not
+ * thread-safe.
+ */
+public class SDFReader implements Iterable<MoleculeTable> {
+
+    private static final String END_OF_RECORD = "$$$$";
+
+    private static final String END_OF_MOLFILE = "M  END";
+
+    private static final String V3000_PREFIX = "M  V30 ";
+
+    /**
+     * Characters of records handed to each extraction task.
+     */
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    private final BufferedReader reader;
+
+    private String idField;
+
+    private boolean iterated;
+
+    /**
+     * @param in    SD file, read as UTF-8; not closed
+     */
+    public SDFReader(InputStream in) {
+        this(new InputStreamReader(in, Charset.forName("UTF-8")));
+    }
+
+    /**
+     * @param in    SD file; not closed
+     */
+    public SDFReader(Reader in) {
+        reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in, BATCH_SIZE);
+    }
+
+    /**
+     * @param idField   name of the data item holding each record's id, or
+     *                  null to use the title line
+     */
+    public void setIdField(String idField) {
+        this.idField = idField;
+    }
+
+    /**
+     * @return name of the data item holding each record's id, or null
+     */
+    public String getIdField() {
+        return idField;
+    }
+
+    /**
+     * @return the next record, or null at the end of the file
+     * @throws RuntimeException if the file cannot be read
+     */
+    public MoleculeTable next() {
+        List<String> record = readRecord();
+        return record == null ? null : parse(record, idField);
+    }
+
+    /**
+     * @return lines of the next record that is not blank, without its
+     *         terminator, or null at the end of the file
+     */
+    private List<String> readRecord() {
+        List<String> lines = new ArrayList<String>();
+        boolean blank = true;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(END_OF_RECORD)) {
+                    if (!blank) {
+                        break;
+                    }
+                    lines.clear();
+                } else {
+                    lines.add(line);
+                    blank = blank && line.trim().length() == 0;
+                }
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to read SDF: " + ioe.getMessage(), ioe);
+        }
+        if (blank) {
+            return null;
+        }
+        return lines;
+    }
+
+    /**
+     * @return iterator over the records not yet read
+     * @throws IllegalStateException if called more than once, or after
+     *         {@link #batches()}
+     */
+    public Iterator<MoleculeTable> iterator() {
+        checkIterated();
+        return new Iterator<MoleculeTable>() {
+
+            private MoleculeTable next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    next = SDFReader.this.next();
+                }
+                return next != null;
+            }
+
+            public MoleculeTable next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                MoleculeTable table = next;
+                next = null;
+                return table;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Splits off runs of records, on the calling thread, to be parsed by
+     * calling the Callables, on any thread.
+     *
+     * @throws IllegalStateException if the reader has been iterated
+     */
+    Iterator<Callable<List<MoleculeTable>>> batches() {
+        checkIterated();
+        return new Iterator<Callable<List<MoleculeTable>>>() {
+
+            private List<String> next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    next = readRecord();
+                }
+                return next != null;
+            }
+
+            public Callable<List<MoleculeTable>> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final String field = idField;
+                final List<List<String>> batch = new ArrayList<List<String>>();
+                int size = 0;
+                while (next != null && size < BATCH_SIZE) {
+                    batch.add(next);
+                    for (String line : next) {
+                        size += line.length() + 1;
+                    }
+                    next = size < BATCH_SIZE ? readRecord() : null;
+                }
+                return new Callable<List<MoleculeTable>>() {
+                    public List<MoleculeTable> call() {
+                        List<MoleculeTable> tables = new ArrayList<MoleculeTable>(batch.size());
+                        for (List<String> record : batch) {
+                            tables.add(parse(record, field));
+                        }
+                        return tables;
+                    }
+                };
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void checkIterated() {
+        if (iterated) {
+            throw new IllegalStateException("Records can only be iterated once");
+        }
+        iterated = true;
+    }
+
+    /**
+     * @param lines     the record, at least one line
+     * @param idField   data item holding the id, or null for the title
+     * @return the table, or one with no atoms and a problem if the record
+     *         is not a molfile this reader supports
+     */
+    static MoleculeTable parse(List<String> lines, String idField) {
+        String id = idField == null ? lines.get(0).trim() : dataItem(lines, idField);
+        if (id != null && id.length() == 0) {
+            id = null;
+        }
+        try {
+            if (lines.size() < 4) {
+                throw new IllegalArgumentException("no counts line");
+            }
+            Ctab ctab = lines.get(3).contains("V3000") ? readV3000(lines) : readV2000(lines);
+            if (ctab.queryBonds) {
+                return failed(id, Problems.BOND_ORDER);
+            }
+            return ctab.toTable(id);
+        } catch (RuntimeException re) {
+            // one bad record must not stop a run over the rest of the file
+            return failed(id, Problems.UNREADABLE_RECORD);
+        }
+    }
+
+    private static MoleculeTable failed(String id, Problems problem) {
+        MoleculeTable table = new MoleculeTable(new String[0]);
+        table.setId(id);
+        table.problem = problem;
+        return table;
+    }
+
+    /**
+     * Columns of a connection table as read, before they are checked and
+     * made into a {@link MoleculeTable}.
+     */
+    private static final class Ctab {
+
+        final String[] elements;
+
+        final double[] x;
+
+        final double[] y;
+
+        final double[] z;
+
+        final int[] charges;
+
+        final int[] isotopes;
+
+        final int[] radicals;
+
+        final int[] parities;
+
+        final int[] valences;
+
+        final int[] bondAtoms0;
+
+        final int[] bondAtoms1;
+
+        final int[] bondOrders;
+
+        final int[] bondStereo;
+
+        /** set if any bond has a query bond type */
+        boolean queryBonds;
+
+        Ctab(int atomCount, int bondCount) {
+            elements = new String[atomCount];
+            x = new double[atomCount];
+            y = new double[atomCount];
+            z = new double[atomCount];
+            charges = new int[atomCount];
+            isotopes = new int[atomCount];
+            radicals = new int[atomCount];
+            parities = new int[atomCount];
+            valences = new int[atomCount];
+            Arrays.fill(valences, -1);
+            bondAtoms0 = new int[bondCount];
+            bondAtoms1 = new int[bondCount];
+            bondOrders = new int[bondCount];
+            bondStereo = new int[bondCount];
+        }
+
+        void setBond(int bond, int atom0, int atom1, int order, int stereo) {
+            if (order < 1 || order > MoleculeTable.AROMATIC) {
+                queryBonds = true;
+            }
+            bondAtoms0[bond] = atom0;
+            bondAtoms1[bond] = atom1;
+            bondOrders[bond] = order;
+            bondStereo[bond] = stereo;
+        }
+
+        MoleculeTable toTable(String id) {
+            MoleculeTable table = new MoleculeTable(elements);
+            table.setId(id);
+            table.setCharges(charges);
+            table.setIsotopes(isotopes);
+            table.setSpinMultiplicities(radicals);
+            boolean flat = true;
+            boolean planar = true;
+            for (int i = 0; i < elements.length; i++) {
+                flat = flat && x[i] == 0 && y[i] == 0 && z[i] == 0;
+                planar = planar && z[i] == 0;
+            }
+            if (!flat) {
+                table.setCoordinates(x, y, planar ? null : z);
+            }
+            table.setBonds(bondAtoms0, bondAtoms1, bondOrders);
+            table.setBondStereo(bondStereo);
+            table.setParities(parities);
+            table.setImplicitHydrogens(implicitHydrogens());
+            return table;
+        }
+
+        /**
+         * @return hydrogens making up each atom's valence, where it is
+         *         given and the atom has no aromatic bonds, otherwise -1
+         */
+        private int[] implicitHydrogens() {
+            int[] implicitH = valences.clone();
+            for (int i = 0; i < bondOrders.length; i++) {
+                useValence(implicitH, bondAtoms0[i], bondOrders[i]);
+                useValence(implicitH, bondAtoms1[i], bondOrders[i]);
+            }
+            return implicitH;
+        }
+
+        private static void useValence(int[] implicitH, int atom, int order) {
+            if (implicitH[atom] < 0) {
+                return;
+            }
+            implicitH[atom] = order == MoleculeTable.AROMATIC ? -1 : Math.max(0, implicitH[atom] - order);
+        }
+
+    }
+
+    private static Ctab readV2000(List<String> lines) {
+        String counts = lines.get(3);
+        int atomCount = intField(counts, 0, 3);
+        int bondCount = intField(counts, 3, 6);
+        if (lines.size() < 4 + atomCount + bondCount) {
+            throw new IllegalArgumentException("record ends inside the connection table");
+        }
+        Ctab ctab = new Ctab(atomCount, bondCount);
+        for (int i = 0; i < atomCount; i++) {
+            String line = lines.get(4 + i);
+            ctab.x[i] = doubleField(line, 0, 10);
+            ctab.y[i] = doubleField(line, 10, 20);
+            ctab.z[i] = doubleField(line, 20, 30);
+            ctab.elements[i] = line.substring(Math.min(31, line.length()), Math.min(34, line.length())).trim();
+            int massDifference = intField(line, 34, 36);
+            if (massDifference != 0) {
+                ctab.isotopes[i] = MoleculeTable.ISOTOPIC_SHIFT + massDifference;
+            }
+            int charge = intField(line, 36, 39);
+            if (charge == 4) {
+                ctab.radicals[i] = 2;
+            } else if (charge != 0) {
+                ctab.charges[i] = 4 - charge;
+            }
+            ctab.parities[i] = intField(line, 39, 42);
+            int valence = intField(line, 48, 51);
+            if (valence != 0) {
+                ctab.valences[i] = valence == 15 ? 0 : valence;
+            }
+        }
+        for (int i = 0; i < bondCount; i++) {
+            String line = lines.get(4 + atomCount + i);
+            int order = intField(line, 6, 9);
+            int stereo = intField(line, 9, 12);
+            if (order == 2 ? stereo != MoleculeTable.DOUBLE_EITHER
+                    : stereo != MoleculeTable.WEDGE_UP && stereo != MoleculeTable.WEDGE_EITHER
+                            && stereo != MoleculeTable.WEDGE_DOWN) {
+                stereo = 0;
+            }
+            ctab.setBond(i, atom(intField(line, 0, 3), atomCount), atom(intField(line, 3, 6), atomCount),
+                    order, stereo);
+        }
+        boolean chargesReset = false;
+        boolean isotopesReset = false;
+        for (int i = 4 + atomCount + bondCount; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.startsWith(END_OF_MOLFILE)) {
+                break;
+            } else if (line.startsWith("A  ") || line.startsWith("G  ")) {
+                i++;
+            } else if (line.startsWith("S  SKP")) {
+                i += intField(line, 6, 9);
+            } else if (line.startsWith("M  CHG") || line.startsWith("M  RAD")) {
+                // these replace all charges and radicals in the atom block
+                if (!chargesReset) {
+                    Arrays.fill(ctab.charges, 0);
+                    Arrays.fill(ctab.radicals, 0);
+                    chargesReset = true;
+                }
+                int[] values = line.startsWith("M  CHG") ? ctab.charges : ctab.radicals;
+                setProperty(line, values, atomCount);
+            } else if (line.startsWith("M  ISO")) {
+                if (!isotopesReset) {
+                    Arrays.fill(ctab.isotopes, 0);
+                    isotopesReset = true;
+                }
+                setProperty(line, ctab.isotopes, atomCount);
+            }
+        }
+        return ctab;
+    }
+
+    /**
+     * Reads the atom and value pairs of a V2000 property line into values.
+     */
+    private static void setProperty(String line, int[] values, int atomCount) {
+        String[] fields = line.substring(6).trim().split("\\s+");
+        int entries = Integer.parseInt(fields[0]);
+        if (fields.length < 1 + 2 * entries) {
+            throw new IllegalArgumentException("short property line: " + line);
+        }
+        for (int i = 0; i < entries; i++) {
+            values[atom(Integer.parseInt(fields[1 + 2 * i]), atomCount)] = Integer.parseInt(fields[2 + 2 * i]);
+        }
+    }
+
+    private static Ctab readV3000(List<String> lines) {
+        Ctab ctab = null;
+        Map<String, Integer> atomIndex = new HashMap<String, Integer>();
+        String block = null;
+        int atoms = 0;
+        int bonds = 0;
+        StringBuilder continued = new StringBuilder();
+        for (int i = 4; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.startsWith(END_OF_MOLFILE)) {
+                break;
+            }
+            if (!line.startsWith(V3000_PREFIX)) {
+                continue;
+            }
+            continued.append(line, V3000_PREFIX.length(), line.length());
+            if (line.endsWith("-")) {
+                continued.setLength(continued.length() - 1);
+                continue;
+            }
+            List<String> fields = fields(continued.toString());
+            continued.setLength(0);
+            if (fields.isEmpty()) {
+                continue;
+            }
+            String keyword = fields.get(0);
+            if ("BEGIN".equals(keyword) && fields.size() > 1) {
+                block = fields.get(1);
+            } else if ("END".equals(keyword)) {
+                if (fields.size() > 1 && "CTAB".equals(fields.get(1)) && ctab != null) {
+                    break;
+                }
+                block = null;
+            } else if ("COUNTS".equals(keyword) && ctab == null) {
+                ctab = new Ctab(Integer.parseInt(fields.get(1)), Integer.parseInt(fields.get(2)));
+            } else if ("ATOM".equals(block)) {
+                if (ctab == null || atoms == ctab.elements.length) {
+                    throw new IllegalArgumentException("more atoms than counted");
+                }
+                readV3000Atom(fields, ctab, atoms);
+                atomIndex.put(keyword, atoms++);
+            } else if ("BOND".equals(block)) {
+                if (ctab == null || bonds == ctab.bondOrders.length) {
+                    throw new IllegalArgumentException("more bonds than counted");
+                }
+                readV3000Bond(fields, ctab, bonds++, atomIndex);
+            }
+        }
+        if (ctab == null || atoms != ctab.elements.length || bonds != ctab.bondOrders.length) {
+            throw new IllegalArgumentException("incomplete V3000 connection table");
+        }
+        return ctab;
+    }
+
+    private static void readV3000Atom(List<String> fields, Ctab ctab, int atom) {
+        if (fields.size() < 5) {
+            throw new IllegalArgumentException("short atom line: " + fields);
+        }
+        ctab.elements[atom] = fields.get(1);
+        ctab.x[atom] = Double.parseDouble(fields.get(2));
+        ctab.y[atom] = Double.parseDouble(fields.get(3));
+        ctab.z[atom] = Double.parseDouble(fields.get(4));
+        for (int i = 6; i < fields.size(); i++) {
+            String field = fields.get(i);
+            int equals = field.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+            String key = field.substring(0, equals);
+            String value = field.substring(equals + 1);
+            if ("CHG".equals(key)) {
+                ctab.charges[atom] = Integer.parseInt(value);
+            } else if ("RAD".equals(key)) {
+                ctab.radicals[atom] = Integer.parseInt(value);
+            } else if ("MASS".equals(key)) {
+                ctab.isotopes[atom] = Integer.parseInt(value);
+            } else if ("CFG".equals(key)) {
+                ctab.parities[atom] = Integer.parseInt(value);
+            } else if ("VAL".equals(key)) {
+                int valence = Integer.parseInt(value);
+                ctab.valences[atom] = valence < 0 ? 0 : valence;
+            }
+        }
+    }
+
+    private static void readV3000Bond(List<String> fields, Ctab ctab, int bond, Map<String, Integer> atomIndex) {
+        if (fields.size() < 4) {
+            throw new IllegalArgumentException("short bond line: " + fields);
+        }
+        int order = Integer.parseInt(fields.get(1));
+        int stereo = 0;
+        for (int i = 4; i < fields.size(); i++) {
+            if (fields.get(i).startsWith("CFG=")) {
+                switch (Integer.parseInt(fields.get(i).substring(4))) {
+                case 1:
+                    stereo = order == 1 ? MoleculeTable.WEDGE_UP : 0;
+                    break;
+                case 2:
+                    stereo = order == 2 ? MoleculeTable.DOUBLE_EITHER
+                            : order == 1 ? MoleculeTable.WEDGE_EITHER : 0;
+                    break;
+                case 3:
+                    stereo = order == 1 ? MoleculeTable.WEDGE_DOWN : 0;
+                    break;
+                default:
+                    stereo = 0;
+                }
+            }
+        }
+        ctab.setBond(bond, v3000Atom(fields.get(2), atomIndex), v3000Atom(fields.get(3), atomIndex),
+                order, stereo);
+    }
+
+    private static int v3000Atom(String index, Map<String, Integer> atomIndex) {
+        Integer atom = atomIndex.get(index);
+        if (atom == null) {
+            throw new IllegalArgumentException("bond to unknown atom " + index);
+        }
+        return atom;
+    }
+
+    /**
+     * Splits a V3000 line on spaces, keeping parenthesised lists and
+     * quoted strings whole.
+     */
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            } else if (!quoted && depth == 0 && c == ' ') {
+                if (field.length() > 0) {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                }
+                continue;
+            }
+            field.append(c);
+        }
+        if (field.length() > 0) {
+            fields.add(field.toString());
+        }
+        return fields;
+    }
+
+    /**
+     * @return first line of the named data item, or null if the record has
+     *         none
+     */
+    private static String dataItem(List<String> lines, String name) {
+        String tag = "<" + name + ">";
+        boolean data = false;
+        for (int i = 0; i < lines.size() - 1; i++) {
+            String line = lines.get(i);
+            if (!data) {
+                data = line.startsWith(END_OF_MOLFILE);
+            } else if (line.startsWith(">") && line.indexOf(tag) > 0) {
+                return lines.get(i + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param number    molfile atom number, from 1
+     * @return table atom number, from 0
+     */
+    private static int atom(int number, int atomCount) {
+        if (number < 1 || number > atomCount) {
+            throw new IllegalArgumentException("no atom " + number);
+        }
+        return number - 1;
+    }
+
+    /**
+     * Parses a fixed-width integer column, which may be padded with spaces,
+     * cut short or missing; missing is 0.
+     */
+    private static int intField(String line, int from, int to) {
+        int end = Math.min(to, line.length());
+        int value = 0;
+        boolean negative = false;
+        boolean digits = false;
+        for (int i = from; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == ' ') {
+                if (digits) {
+                    break;
+                }
+            } else if (c == '-' && !digits && !negative) {
+                negative = true;
+            } else if (c >= '0' && c <= '9') {
+                value = 10 * value + (c - '0');
+                digits = true;
+            } else {
+                throw new NumberFormatException("not a number: " + line.substring(from, end));
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    private static double doubleField(String line, int from, int to) {
+        if (from >= line.length()) {
+            return 0;
+        }
+        String field = line.substring(from, Math.min(to, line.length())).trim();
+        return field.length() == 0 ? 0 : Double.parseDouble(field);
+    }
+
+}
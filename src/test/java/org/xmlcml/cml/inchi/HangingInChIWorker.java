@@ -0,0 +1,56 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+
+/**
+ * Worker process for tests, on which every InChI call hangs, as the library
+ * can on some structures. Other requests are handled as by
+ * {@link InChIWorker}.
+ */
+public final class HangingInChIWorker {
+
+    private HangingInChIWorker() {
+    }
+
+    /**
+     * @param args ignored
+     * @throws Exception if the pipe to the parent breaks
+     */
+    public static void main(String[] args) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+
+        byte[] request;
+        while ((request = InChIWire.readFrame(in)) != null) {
+            if (request[0] == InChIWire.GET_INCHI) {
+                // until the watchdog or the pool kills us
+                Thread.sleep(Long.MAX_VALUE);
+            }
+            InChIWire.writeFrame(out, InChIWorker.handle(request));
+        }
+    }
+
+}
@@ -18,11 +18,28 @@ package org.xmlcml.cml.inchi;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
 
 import net.sf.jniinchi.INCHI_OPTION;
 import net.sf.jniinchi.INCHI_RET;
+import net.sf.jniinchi.JniInchiInput;
 
 import org.junit.Test;
 import org.xmlcml.cml.element.CMLAtom;
@@ -368,4 +385,735 @@ public class InChIGeneratorTest {
         assertEquals("InChI=1S/CHBrClF/c2-1(3)4/h1H/t1-/m1/s1", inchi);
     }
 
+    @Test
+    public void testGenerateAll() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        List<CMLMolecule> molecules = Arrays.asList(
+                getLAlanineInput(), getRAlanineInput(), getLAlanineInput());
+        List<InChIGenerator> gens = factory.generateAll(molecules);
+        assertEquals(3, gens.size());
+        assertTrue(gens.get(0).isGenerated());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gens.get(0).getInchi());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m1/s1", gens.get(1).getInchi());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gens.get(2).getInchi());
+
+        gens = factory.generateAll(molecules, "/sNON");
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)", gens.get(1).getInchi());
+    }
+
+    @Test
+    public void testGenerateAllToSink() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        List<CMLMolecule> molecules = Arrays.asList(
+                getLAlanineInput(), getRAlanineInput(), getLAlanineInput());
+        final List<InChIResult> results = new ArrayList<InChIResult>();
+        factory.generateAll(molecules, InChIOptions.NONE, new ProcessingOptions[] {
+                ProcessingOptions.USE_BONDS, ProcessingOptions.INCHI_ONLY, ProcessingOptions.INCHI_KEY },
+                new InChIResultSink() {
+                    public void accept(InChIResult result) {
+                        results.add(result);
+                    }
+                });
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isOK());
+        assertNull(results.get(0).getProblem());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m1/s1", results.get(1).getInchi());
+        assertEquals("QNAYBMKLOCPYGJ-REOHCLBHSA-N", results.get(2).getInchiKey());
+        assertNull(results.get(0).getAuxInfo());
+    }
+
+    @Test
+    public void testLanes() {
+        InChILanes lanes = new InChILanes(50, 3);
+        lanes.setLimits(InChILanes.Lane.HEAVY, 1, 0);
+        assertEquals(InChILanes.Lane.LIGHT, lanes.classify(6, 0));
+        assertEquals(InChILanes.Lane.HEAVY, lanes.classify(6, 3));
+        assertEquals(InChILanes.Lane.HEAVY, lanes.classify(50, 0));
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        factory.setLanes(lanes);
+        List<InChIGenerator> gens = factory.generateAll(Arrays.asList(getLAlanineInput(), getRAlanineInput()));
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m1/s1", gens.get(1).getInchi());
+    }
+
+    @Test
+    public void testLaneTimeout() throws Exception {
+        InChILanes lanes = new InChILanes(50, 3);
+        lanes.setLimits(InChILanes.Lane.LIGHT, 1, 10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        InChIEngine blocking = new InChIEngine() {
+            public InChIResult getInchi(JniInchiInput input, String options,
+                    InChIResult.Detail detail, long timeout) {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return NativeInChIEngine.INSTANCE.getInchi(input, options, detail, 0);
+            }
+            public InChIStructure getStructure(String inchi, String options) {
+                return NativeInChIEngine.INSTANCE.getStructure(inchi, options);
+            }
+            public String[] getInchiKeys(String[] inchis) {
+                return NativeInChIEngine.INSTANCE.getInchiKeys(inchis);
+            }
+            public boolean isParallel() {
+                return true;
+            }
+        };
+        final LanedInChIEngine engine = new LanedInChIEngine(lanes, blocking, blocking);
+        InChIGenerator gen = new InChIGeneratorFactory().getInChIGenerator(getLAlanineInput());
+        gen.extract();
+        final JniInchiInput input = gen.input;
+        Thread holder = new Thread(new Runnable() {
+            public void run() {
+                engine.getInchi(input, "", InChIResult.Detail.FULL, 0);
+            }
+        });
+        holder.start();
+        started.await();
+        try {
+            engine.getInchi(input, "", InChIResult.Detail.FULL, 100);
+            fail("Lane wait should have timed out");
+        } catch (InChITimeoutException ite) {
+            // expected
+        } finally {
+            finish.countDown();
+            holder.join(10000);
+        }
+        assertEquals(INCHI_RET.OKAY, engine.getInchi(input, "", InChIResult.Detail.FULL, 100).getReturnStatus());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIMetrics metrics = factory.enableMetrics("testMetrics");
+        try {
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+                    "org.xmlcml.cml.inchi:type=InChIMetrics,name=\"testMetrics\"")));
+            assertTrue(factory.getInChIGenerator(getLAlanineInput()).isOK());
+            factory.getInChIToStructure("InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3");
+            assertEquals(1, metrics.getPhaseCount(InChIMetricsListener.Phase.EXTRACT));
+            assertEquals(2, metrics.getPhaseCount(InChIMetricsListener.Phase.NATIVE));
+            assertEquals(1, metrics.getPhaseCount(InChIMetricsListener.Phase.BUILD));
+            assertEquals(1, metrics.getReturnStatusCount(INCHI_RET.OKAY));
+            assertEquals(1, metrics.getStructureReturnStatusCount(INCHI_RET.OKAY));
+            assertTrue(metrics.getPhasePercentileNanos(InChIMetricsListener.Phase.NATIVE, 99) > 0);
+        } finally {
+            factory.disableMetrics();
+        }
+        assertNull(factory.getMetricsListener());
+    }
+
+    @Test
+    public void testResultCache() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIResultCache cache = new InChIResultCache(1);
+        factory.setResultCache(cache);
+
+        InChIGenerator gen = factory.getInChIGenerator(getLAlanineInput());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+        gen = factory.getInChIGenerator(getLAlanineInput());
+        assertEquals(INCHI_RET.OKAY, gen.getReturnStatus());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+        assertEquals("AuxInfo=1/1/N:4,1,2,3,5,6/E:(5,6)/it:im/rA:6CCNCOO/rB:s1;s1;s1;d2;s2;/rC:-.358,.819,20.655;-1.598,-.032,20.905;-.275,2.014,21.574;.952,.043,20.838;-2.678,.479,21.093;-1.596,-1.239,20.958;", gen.getAuxInfo());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // options are part of the key
+        gen = factory.getInChIGenerator(getLAlanineInput(), "-SNon");
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)", gen.getInchi());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getInchiKeyCount());
+
+        // InChIKeys are counted apart from results
+        assertEquals("QNAYBMKLOCPYGJ-UHFFFAOYSA-N", gen.getInchiKey());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getInchiKeyCount());
+    }
+
+    @Test
+    public void testInchiOnly() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIGenerator gen = factory.getInChIGenerator(getLAlanineInput());
+        gen.setProcessingOptions(new ProcessingOptions[] {
+                ProcessingOptions.USE_BONDS, ProcessingOptions.INCHI_ONLY });
+        assertEquals(INCHI_RET.OKAY, gen.getReturnStatus());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+        try {
+            gen.getAuxInfo();
+            fail("AuxInfo was not requested");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+
+        gen = factory.getInChIGenerator(getLAlanineInput());
+        gen.setProcessingOptions(new ProcessingOptions[] {
+                ProcessingOptions.USE_BONDS, ProcessingOptions.STATUS_ONLY });
+        assertTrue(gen.isOK());
+        try {
+            gen.getInchi();
+            fail("InChI was not requested");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMoleculeTable() {
+        // L-alanine, as in getLAlanineInput()
+        MoleculeTable table = new MoleculeTable(new String[] { "C", "C", "N", "C", "O", "O" });
+        table.setImplicitHydrogens(new int[] { 1, 0, 2, 3, 0, 1 });
+        table.setCoordinates(
+                new double[] { -0.358, -1.598, -0.275, 0.952, -2.678, -1.596 },
+                new double[] { 0.819, -0.032, 2.014, 0.043, 0.479, -1.239 },
+                new double[] { 20.655, 20.905, 21.574, 20.838, 21.093, 20.958 });
+        table.setBonds(new int[] { 0, 0, 0, 1, 1 }, new int[] { 1, 2, 3, 4, 5 },
+                new int[] { 1, 1, 1, 2, 1 });
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIGenerator gen = factory.getInChIGenerator(table);
+        assertEquals(INCHI_RET.OKAY, gen.getReturnStatus());
+        assertEquals(factory.getInChIGenerator(getLAlanineInput()).getInchi(), gen.getInchi());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+    }
+
+    @Test
+    public void testReset() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIGenerator gen = factory.getInChIGenerator(getLAlanineInput());
+        gen.generate();
+        try {
+            gen.generate();
+            fail("single use generator reused");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        CMLMolecule methane = new CMLMolecule();
+        CMLAtom atom = new CMLAtom("a1");
+        atom.setElementType(AS.C.value);
+        atom.setHydrogenCount(4);
+        methane.addAtom(atom);
+        gen.reset(methane);
+        assertFalse(gen.isGenerated());
+        assertEquals("InChI=1S/CH4/h1H4", gen.getInchi());
+    }
+
+    @Test
+    public void testPooledGenerator() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIGenerator gen = factory.getPooledInChIGenerator(getLAlanineInput());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+        InChIGenerator again = factory.getPooledInChIGenerator(getLAlanineInput());
+        assertSame(gen, again);
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", again.getInchi());
+        assertNotSame(gen, factory.getPooledInChIGenerator(getLAlanineInput(), InChIOptions.valueOf("-SNon")));
+
+        // options changed by one caller do not carry over to the next
+        gen = factory.getPooledInChIGenerator(getLAlanineInput());
+        gen.setProcessingOptions(new ProcessingOptions[] { ProcessingOptions.INCHI_ONLY });
+        try {
+            gen.getAuxInfo();
+            fail("AuxInfo was not requested");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        again = factory.getPooledInChIGenerator(getLAlanineInput());
+        assertSame(gen, again);
+        assertEquals(1, again.getProcessingOptions().length);
+        assertEquals(ProcessingOptions.USE_BONDS, again.getProcessingOptions()[0]);
+        assertEquals("AuxInfo=1/1/N:4,1,2,3,5,6/E:(5,6)/it:im/rA:6CCNCOO/rB:s1;s1;s1;d2;s2;/rC:-.358,.819,20.655;-1.598,-.032,20.905;-.275,2.014,21.574;.952,.043,20.838;-2.678,.479,21.093;-1.596,-1.239,20.958;", again.getAuxInfo());
+    }
+
+    @Test
+    public void testSpinMultiplicity() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        CMLMolecule mol = new CMLMolecule();
+        CMLAtom atom = new CMLAtom("a1");
+        atom.setElementType(AS.C.value);
+        atom.setHydrogenCount(3);
+        atom.setSpinMultiplicity(2);
+        mol.addAtom(atom);
+        InChIGenerator gen = factory.getInChIGenerator(mol);
+        assertEquals("InChI=1S/CH3/h1H3", gen.getInchi());
+
+        atom.setSpinMultiplicity(5);
+        gen = factory.getInChIGenerator(mol);
+        gen.generate();
+        assertEquals(Problems.SPIN_MULTIPLICITY, gen.getPreInChiProblem());
+    }
+
+    @Test
+    public void testInChIOptions() {
+        InChIOptions options = InChIOptions.valueOf("-fixedh /SNon -SNon");
+        assertEquals(InChIOptions.valueOf(Arrays.asList(INCHI_OPTION.SNon, INCHI_OPTION.FixedH)), options);
+        assertEquals(options.hashCode(), InChIOptions.valueOf("/FixedH /SNon").hashCode());
+        assertEquals("-SNon -FixedH", options.toString());
+        assertTrue(options.contains(INCHI_OPTION.FixedH));
+        assertSame(InChIOptions.NONE, InChIOptions.valueOf(" "));
+
+        InChIOptions withoutAuxInfo = options.withoutAuxInfo();
+        assertEquals(InChIOptions.valueOf("-SNon -FixedH -AuxNone"), withoutAuxInfo);
+        assertSame(withoutAuxInfo, options.withoutAuxInfo());
+        assertSame(withoutAuxInfo, withoutAuxInfo.withoutAuxInfo());
+
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIGenerator gen = factory.getInChIGenerator(getLAlanineInput(), InChIOptions.valueOf("-SNon"));
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)", gen.getInchi());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInChIOptionsUnrecognised() {
+        InChIOptions.valueOf("-NoSuchOption");
+    }
+
+    @Test
+    public void testInchiKey() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIGenerator gen = factory.getInChIGenerator(getLAlanineInput());
+        assertEquals("QNAYBMKLOCPYGJ-REOHCLBHSA-N", gen.getInchiKey());
+    }
+
+    @Test
+    public void testInchiKeysFor() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIResultCache cache = new InChIResultCache(10);
+        factory.setResultCache(cache);
+        List<String> inchis = Arrays.asList("InChI=1S/CH4/h1H4", "InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3");
+        List<String> keys = factory.inchiKeysFor(inchis);
+        assertEquals(Arrays.asList("VNWKTOKETHGBQD-UHFFFAOYSA-N", "LFQSCWFLJHTTHZ-UHFFFAOYSA-N"), keys);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(keys, factory.inchiKeysFor(inchis));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testResultStore() throws Exception {
+        File file = File.createTempFile("inchi", ".store");
+        file.deleteOnExit();
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIResultStore store = new InChIResultStore(file, 100);
+        factory.setResultStore(store);
+        InChIGenerator gen = factory.getInChIGenerator(getLAlanineInput());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+        assertEquals(1, store.getMissCount());
+        assertEquals(1, store.size());
+        store.close();
+
+        // reopened, as after a restart
+        factory = new InChIGeneratorFactory();
+        store = new InChIResultStore(file, 100);
+        factory.setResultStore(store);
+        gen = factory.getInChIGenerator(getLAlanineInput());
+        assertEquals(INCHI_RET.OKAY, gen.getReturnStatus());
+        assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+        assertEquals(1, store.getHitCount());
+
+        // only one store may have the file open
+        try {
+            new InChIResultStore(file, 100);
+            fail("Store file should be locked");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        store.close();
+
+        // a different library version empties the store
+        store = new InChIResultStore(file, 100, "other");
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedOutputFields() {
+        // subclasses written against the library objects still see them
+        InChIGenerator gen = new InChIGeneratorFactory().getInChIGenerator(getLAlanineInput());
+        gen.generate();
+        assertEquals(gen.getInchi(), gen.output.getInchi());
+        InChIToStructure intostruct = new InChIToStructure("InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3");
+        assertNotNull(intostruct.input);
+        assertEquals(intostruct.getReturnStatus(), intostruct.output.getReturnStatus());
+
+        // not set when the result comes from a cache
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        factory.setResultCache(new InChIResultCache(10));
+        gen = factory.getInChIGenerator(getLAlanineInput());
+        gen.generate();
+        assertNull(gen.output);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStructureOptionList() {
+        // callers pass INCHI_OPTIONs through the List<String> overloads
+        List options = Arrays.asList(INCHI_OPTION.FixedH, INCHI_OPTION.SNon);
+        String inchi = "InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3";
+        InChIToStructure intostruct = new InChIGeneratorFactory().getInChIToStructure(inchi, options);
+        assertEquals(INCHI_RET.OKAY, intostruct.getReturnStatus());
+        assertEquals(3, intostruct.getMolecule().getAtomCount());
+        assertEquals("-SNon -FixedH", InChIToStructure.toOptionString(options));
+        assertEquals(3, new InChIToStructure(inchi, options).getMolecule().getAtomCount());
+        assertEquals("-SNon -FixedH", InChIToStructure.toOptionString(Arrays.asList("/fixedh", "SNon")));
+    }
+
+    @Test
+    public void testStructureCache() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIStructureCache cache = new InChIStructureCache(10);
+        factory.setStructureCache(cache);
+
+        String inchi = "InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3";
+        CMLMolecule first = factory.getInChIToStructure(inchi).getMolecule();
+        InChIToStructure intostruct = factory.getInChIToStructure(inchi);
+        assertEquals(INCHI_RET.OKAY, intostruct.getReturnStatus());
+        CMLMolecule second = intostruct.getMolecule();
+        assertNotSame(first, second);
+        assertEquals(3, second.getAtomCount());
+        assertEquals(2, second.getBondCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // a cached structure is not changed through a caller's flags
+        long[][] flags = intostruct.getWarningFlags();
+        long flag = flags[0][0];
+        flags[0][0] = ~flag;
+        assertEquals(flag, factory.getInChIToStructure(inchi).getWarningFlags()[0][0]);
+    }
+
+    @Test
+    public void testWorkerProcesses() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        factory.startWorkers(2);
+        try {
+            assertEquals(2, factory.getWorkerCount());
+            InChIGenerator gen = factory.getInChIGenerator(getLAlanineInput());
+            assertEquals(INCHI_RET.OKAY, gen.getReturnStatus());
+            assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+            assertEquals("AuxInfo=1/1/N:4,1,2,3,5,6/E:(5,6)/it:im/rA:6CCNCOO/rB:s1;s1;s1;d2;s2;/rC:-.358,.819,20.655;-1.598,-.032,20.905;-.275,2.014,21.574;.952,.043,20.838;-2.678,.479,21.093;-1.596,-1.239,20.958;", gen.getAuxInfo());
+
+            List<InChIGenerator> gens = factory.generateAll(Arrays.asList(getLAlanineInput(), getRAlanineInput()));
+            assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m1/s1", gens.get(1).getInchi());
+
+            InChIToStructure intostruct = factory.getInChIToStructure("InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3");
+            assertEquals(INCHI_RET.OKAY, intostruct.getReturnStatus());
+            assertEquals(3, intostruct.getMolecule().getAtomCount());
+            assertEquals(2, intostruct.getMolecule().getBondCount());
+        } finally {
+            factory.stopWorkers();
+        }
+        assertEquals(0, factory.getWorkerCount());
+    }
+
+    @Test
+    public void testTimeout() {
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIGenerator gen = factory.getInChIGenerator(getLAlanineInput());
+        try {
+            gen.generate(10, TimeUnit.SECONDS);
+            fail("Timeouts need worker processes");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        // the failed call leaves no timeout behind
+        assertEquals(0, gen.getTimeout(TimeUnit.MILLISECONDS));
+        CMLMolecule methane = new CMLMolecule();
+        CMLAtom atom = new CMLAtom("a1");
+        atom.setElementType(AS.C.value);
+        atom.setHydrogenCount(4);
+        methane.addAtom(atom);
+        gen.reset(methane);
+        gen.generate();
+        assertEquals("InChI=1S/CH4/h1H4", gen.getInchi());
+        try {
+            gen.generate(10, TimeUnit.SECONDS);
+            fail("single use generator reused");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        assertEquals(0, gen.getTimeout(TimeUnit.MILLISECONDS));
+
+        factory.startWorkers(1);
+        try {
+            factory.setTimeout(30, TimeUnit.SECONDS);
+            gen = factory.getInChIGenerator(getLAlanineInput());
+            assertEquals(30000, gen.getTimeout(TimeUnit.MILLISECONDS));
+            assertEquals("InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", gen.getInchi());
+            assertNull(gen.getPreInChiProblem());
+        } finally {
+            factory.stopWorkers();
+        }
+    }
+
+    @Test
+    public void testTimeoutKillsWorker() {
+        InChIWorkerPool pool = new InChIWorkerPool(1, HangingInChIWorker.class);
+        try {
+            InChIGenerator gen = new InChIGeneratorFactory().getInChIGenerator(getLAlanineInput());
+            gen.engine = pool;
+            gen.generate(200, TimeUnit.MILLISECONDS);
+            assertEquals(0, gen.getTimeout(TimeUnit.MILLISECONDS));
+            assertEquals(Problems.TIMEOUT, gen.getPreInChiProblem());
+            assertFalse(gen.isOK());
+            assertNull(gen.getReturnStatus());
+            assertNull(gen.getInchi());
+            assertNull(gen.getAuxInfo());
+            assertNull(gen.getMessage());
+            assertEquals(Problems.TIMEOUT, gen.getResult().getProblem());
+
+            // the killed worker is started again on its next call
+            assertEquals("VNWKTOKETHGBQD-UHFFFAOYSA-N",
+                    pool.getInchiKeys(new String[] {"InChI=1S/CH4/h1H4"})[0]);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testCloseFailsWaitingCallers() throws Exception {
+        final InChIWorkerPool pool = new InChIWorkerPool(1, HangingInChIWorker.class);
+        InChIGenerator gen = new InChIGeneratorFactory().getInChIGenerator(getLAlanineInput());
+        gen.extract();
+        final JniInchiInput input = gen.input;
+        final Throwable[] failures = new Throwable[2];
+        Thread busy = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    pool.getInchi(input, "", InChIResult.Detail.FULL, 0);
+                } catch (Throwable t) {
+                    failures[0] = t;
+                }
+            }
+        });
+        Thread waiting = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    pool.getInchiKeys(new String[] {"InChI=1S/CH4/h1H4"});
+                } catch (Throwable t) {
+                    failures[1] = t;
+                }
+            }
+        });
+        busy.start();
+        Thread.sleep(500);
+        waiting.start();
+        Thread.sleep(500);
+        pool.close();
+        busy.join(10000);
+        waiting.join(10000);
+        assertFalse(busy.isAlive());
+        assertFalse(waiting.isAlive());
+        assertTrue(failures[0] instanceof IllegalStateException);
+        assertTrue(failures[1] instanceof IllegalStateException);
+        try {
+            pool.getInchiKeys(new String[] {"InChI=1S/CH4/h1H4"});
+            fail("Closed pool should not start its worker again");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        String cml = "<cml xmlns='http://www.xml-cml.org/schema'><moleculeList>"
+                + "<molecule id='ethanol'><atomArray>"
+                + "<atom id='a1' elementType='C' hydrogenCount='3'/>"
+                + "<atom id='a2' elementType='C' hydrogenCount='2'/>"
+                + "<atom id='a3' elementType='O' hydrogenCount='1'/>"
+                + "</atomArray><bondArray>"
+                + "<bond atomRefs2='a1 a2' order='1'/><bond atomRefs2='a2 a3' order='1'/>"
+                + "</bondArray></molecule>"
+                + "<molecule id='methane'><atomArray>"
+                + "<atom id='a1' elementType='C' hydrogenCount='4'/>"
+                + "</atomArray></molecule>"
+                + "</moleculeList></cml>";
+        StringWriter out = new StringWriter();
+        InChIPipeline pipeline = new InChIPipeline(new InChIGeneratorFactory(), InChIOptions.NONE,
+                ProcessingOptions.USE_BONDS, ProcessingOptions.INCHI_KEY);
+        assertEquals(2, pipeline.run(new ByteArrayInputStream(cml.getBytes("UTF-8")), out));
+        assertEquals("ethanol\tInChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3\tLFQSCWFLJHTTHZ-UHFFFAOYSA-N\tOKAY\n"
+                + "methane\tInChI=1S/CH4/h1H4\tVNWKTOKETHGBQD-UHFFFAOYSA-N\tOKAY\n", out.toString());
+    }
+
+    @Test
+    public void testAnnotator() throws Exception {
+        String cml = "<cml xmlns='http://www.xml-cml.org/schema'>\n"
+                + "<molecule id='ethanol'><atomArray>"
+                + "<atom id='a1' elementType='C' hydrogenCount='3'/>"
+                + "<atom id='a2' elementType='C' hydrogenCount='2'/>"
+                + "<atom id='a3' elementType='O' hydrogenCount='1'/>"
+                + "</atomArray><bondArray>"
+                + "<bond atomRefs2='a1 a2' order='1'/><bond atomRefs2='a2 a3' order='1'/>"
+                + "</bondArray></molecule>\n</cml>";
+        InChIAnnotator annotator = new InChIAnnotator(new InChIGeneratorFactory(), InChIOptions.NONE);
+        annotator.setInchiKeys(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, annotator.annotate(new ByteArrayInputStream(cml.getBytes("UTF-8")), out));
+        String annotated = out.toString("UTF-8");
+        assertTrue(annotated.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<cml xmlns=\"http://www.xml-cml.org/schema\">\n<molecule id=\"ethanol\">"));
+        assertTrue(annotated.endsWith("</bondArray>"
+                + "<identifier convention=\"iupac:inchi\">InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3</identifier>"
+                + "<identifier convention=\"iupac:inchikey\">LFQSCWFLJHTTHZ-UHFFFAOYSA-N</identifier>"
+                + "</molecule>\n</cml>"));
+    }
+
+    @Test
+    public void testAnnotatorIncremental() throws Exception {
+        String cml = "<cml xmlns='http://www.xml-cml.org/schema'>\n"
+                + "<molecule id='ethanol'><atomArray>"
+                + "<atom id='a1' elementType='C' hydrogenCount='3'/>"
+                + "<atom id='a2' elementType='C' hydrogenCount='2'/>"
+                + "<atom id='a3' elementType='O' hydrogenCount='1'/>"
+                + "</atomArray><bondArray>"
+                + "<bond atomRefs2='a1 a2' order='1'/><bond atomRefs2='a2 a3' order='1'/>"
+                + "</bondArray><identifier convention='iupac:inchi'>InChI=1S/CH4/h1H4</identifier></molecule>\n</cml>";
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        InChIAnnotator annotator = new InChIAnnotator(factory, InChIOptions.NONE);
+        annotator.setIncremental(true);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        annotator.annotate(new ByteArrayInputStream(cml.getBytes("UTF-8")), first);
+        String annotated = first.toString("UTF-8");
+        assertFalse(annotated.contains("InChI=1S/CH4/h1H4"));
+        assertTrue(annotated.matches("(?s).*</bondArray>"
+                + "<identifier convention=\"iupac:inchi\">InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3</identifier>"
+                + "<identifier convention=\"jumbo:inchiStamp\">[0-9a-f]{32} \\S+ OKAY</identifier>"
+                + "</molecule>\n</cml>"));
+        InChIMetrics metrics = factory.enableMetrics("testAnnotatorIncremental");
+        try {
+            ByteArrayOutputStream second = new ByteArrayOutputStream();
+            assertEquals(1, annotator.annotate(new ByteArrayInputStream(first.toByteArray()), second));
+            assertEquals(annotated, second.toString("UTF-8"));
+            assertEquals(0, metrics.getPhaseCount(InChIMetricsListener.Phase.NATIVE));
+        } finally {
+            factory.disableMetrics();
+        }
+    }
+
+    @Test
+    public void testSDFReader() throws Exception {
+        String sdf = "L-alanine\n\n\n  6  5  0  0  1  0  0  0  0  0999 V2000\n"
+                + "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "    0.0000    1.0000    0.0000 N   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "    0.8660   -0.5000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "   -0.8660   -0.5000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "    1.7321    0.0000    0.0000 O   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "    0.8660   -1.5000    0.0000 O   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "  1  2  1  0\n  1  3  1  0\n  1  4  1  6\n  3  5  2  0\n  3  6  1  0\n"
+                + "M  END\n> <ID>\nala\n\n$$$$\n"
+                + "ethanol\n\n\n  3  2  0  0  0  0  0  0  0  0999 V2000\n"
+                + "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "    0.0000    0.0000    0.0000 O   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "  1  2  1  0\n  2  3  1  0\nM  ISO  1   1  13\nM  END\n> <ID>\netoh\n\n$$$$\n"
+                + "acetate\n\n\n  0  0  0     0  0            999 V3000\n"
+                + "M  V30 BEGIN CTAB\nM  V30 COUNTS 4 3 0 0 0\nM  V30 BEGIN ATOM\n"
+                + "M  V30 1 C 0 0 0 0\nM  V30 2 C 1.3 0 0 0\nM  V30 3 O 2 1.2 0 0\nM  V30 4 O 2 -1.2 0 0 -\n"
+                + "M  V30 CHG=-1\nM  V30 END ATOM\nM  V30 BEGIN BOND\n"
+                + "M  V30 1 1 1 2\nM  V30 2 2 2 3\nM  V30 3 1 2 4\nM  V30 END BOND\nM  V30 END CTAB\n"
+                + "M  END\n> <ID>\nac\n\n$$$$\n";
+        SDFReader reader = new SDFReader(new StringReader(sdf));
+        reader.setIdField("ID");
+        StringWriter out = new StringWriter();
+        assertEquals(3, new InChIPipeline(new InChIGeneratorFactory(), InChIOptions.NONE).run(reader, out));
+        assertEquals("ala\tInChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1\t\tOKAY\n"
+                + "etoh\tInChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3/i1+1\t\tOKAY\n"
+                + "ac\tInChI=1S/C2H4O2/c1-2(3)4/h1H3,(H,3,4)/p-1\t\tOKAY\n", out.toString());
+    }
+
+    @Test
+    public void testSDFBadRecords() throws Exception {
+        String methane = "\n\n\n  1  0  0  0  0  0  0  0  0  0999 V2000\n"
+                + "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "M  END\n";
+        String sdf = "first" + methane + "$$$$\n"
+                + "query\n\n\n  2  1  0  0  0  0  0  0  0  0999 V2000\n"
+                + "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+                + "  1  2  8  0\nM  END\n$$$$\n"
+                + "garbage\n\n\nnot a counts line\nM  END\n$$$$\n"
+                + "last" + methane + "$$$$\n";
+        StringWriter out = new StringWriter();
+        assertEquals(4, new InChIPipeline(new InChIGeneratorFactory(), InChIOptions.NONE)
+                .run(new SDFReader(new StringReader(sdf)), out));
+        assertEquals("first\tInChI=1S/CH4/h1H4\t\tOKAY\n"
+                + "query\t\t\tBOND_ORDER\n"
+                + "garbage\t\t\tUNREADABLE_RECORD\n"
+                + "last\tInChI=1S/CH4/h1H4\t\tOKAY\n", out.toString());
+
+        SDFReader reader = new SDFReader(new StringReader(sdf));
+        reader.next();
+        MoleculeTable query = reader.next();
+        assertEquals("query", query.getId());
+        assertEquals(Problems.BOND_ORDER, query.getProblem());
+        InChIGenerator gen = new InChIGeneratorFactory().getInChIGenerator(query);
+        gen.generate();
+        assertEquals(Problems.BOND_ORDER, gen.getPreInChiProblem());
+        assertNull(gen.getInchi());
+        assertEquals(Problems.UNREADABLE_RECORD, reader.next().getProblem());
+        assertNull(reader.next().getProblem());
+    }
+
+    @Test
+    public void testSDFParityWithExplicitHydrogen() throws Exception {
+        String[][] orders = { { "C", "F", "Cl", "Br", "H" }, { "H", "C", "F", "Cl", "Br" }, { "C", "F", "Cl", "Br" } };
+        StringBuilder sdf = new StringBuilder();
+        for (String[] atoms : orders) {
+            int carbon = Arrays.asList(atoms).indexOf("C");
+            sdf.append("\n\n\n").append(String.format("%3d%3d  0  0  0  0  0  0  0  0999 V2000%n",
+                    atoms.length, atoms.length - 1));
+            for (int i = 0; i < atoms.length; i++) {
+                sdf.append(String.format("    0.0000    0.0000    0.0000 %-3s 0  0  %d  0  0  0  0  0  0  0  0  0%n",
+                        atoms[i], i == carbon ? 1 : 0));
+            }
+            for (int i = 0; i < atoms.length; i++) {
+                if (i != carbon) {
+                    sdf.append(String.format("%3d%3d  1  0%n", carbon + 1, i + 1));
+                }
+            }
+            sdf.append("M  END\n$$$$\n");
+        }
+        InChIGeneratorFactory factory = new InChIGeneratorFactory();
+        List<String> inchis = new ArrayList<String>();
+        for (MoleculeTable table : new SDFReader(new StringReader(sdf.toString()))) {
+            inchis.add(factory.getInChIGenerator(table, InChIOptions.NONE).getInchi());
+        }
+        assertTrue(inchis.get(0), inchis.get(0).contains("/t1"));
+        assertEquals(inchis.get(0), inchis.get(1));
+        assertEquals(inchis.get(0), inchis.get(2));
+    }
+
+    @Test
+    public void testPipelineMappedFile() throws Exception {
+        File file = File.createTempFile("molecules", ".cml");
+        file.deleteOnExit();
+        Writer cml = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        cml.write("<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<c:cml xmlns:c='http://www.xml-cml.org/schema'><c:list>");
+        for (int i = 0; i < 1000; i++) {
+            cml.write("<c:molecule id='m" + i + "' title='a&gt;b'><c:atomArray>"
+                    + "<c:atom id='a1' elementType='C' hydrogenCount='" + (i % 2 == 0 ? 4 : 3) + "'/>"
+                    + (i % 2 == 0 ? "" : "<c:atom id='a2' elementType='O' hydrogenCount='1'/>")
+                    + "</c:atomArray>"
+                    + (i % 2 == 0 ? "" : "<c:bondArray><c:bond atomRefs2='a1 a2' order='1'/></c:bondArray>")
+                    + "</c:molecule>\n");
+        }
+        cml.write("</c:list></c:cml>\n");
+        cml.close();
+        InChIPipeline pipeline = new InChIPipeline(new InChIGeneratorFactory(), InChIOptions.NONE);
+        StringWriter mapped = new StringWriter();
+        assertEquals(1000, pipeline.run(file, mapped));
+        StringWriter streamed = new StringWriter();
+        InputStream in = new FileInputStream(file);
+        try {
+            assertEquals(1000, pipeline.run(in, streamed));
+        } finally {
+            in.close();
+        }
+        assertEquals(streamed.toString(), mapped.toString());
+        assertTrue(mapped.toString().startsWith("m0\tInChI=1S/CH4/h1H4\t\tOKAY\nm1\tInChI=1S/CH4O/c1-2/h2H,1H3\t\tOKAY\n"));
+    }
+
 }
@@ -0,0 +1,57 @@
+/**
+ *    Copyright 2011 Peter Murray-Rust et. al.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.xmlcml.cml.inchi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/** test for pure-Java InChIKeys; expected keys are from the InChI library.
+ */
+public class InChIKeyCalculatorTest {
+
+    private static final String[][] REFERENCE = {
+        { "InChI=1S/CH4/h1H4", "VNWKTOKETHGBQD-UHFFFAOYSA-N" },
+        { "InChI=1S/C8H18/c1-3-5-7-8-6-4-2/h3-8H2,1-2H3", "TVMXDCGIABBOFY-UHFFFAOYSA-N" },
+        { "InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m0/s1", "QNAYBMKLOCPYGJ-REOHCLBHSA-N" },
+        { "InChI=1S/C3H7NO2/c1-2(4)3(5)6/h2H,4H2,1H3,(H,5,6)/t2-/m1/s1", "QNAYBMKLOCPYGJ-UWTATZPHSA-N" },
+        { "InChI=1S/C4H8/c1-3-4-2/h3-4H,1-2H3/b4-3-", "IAQRGUVFOMOMEM-ARJAWSKDSA-N" },
+        { "InChI=1S/ClH.Na/h1H;/q;+1/p-1", "FAPWRFPIFSIZLT-UHFFFAOYSA-M" },
+        { "InChI=1S/H3N/h1H3/p+1", "QGZKDVFQNNGYKY-UHFFFAOYSA-O" },
+        { "InChI=1S/C27H46O/c1-18(2)7-6-8-19(3)23-11-12-24-22-10-9-20-17-21(28)13-15-26(20,4)25(22)14-16-27(23,24)5/h9,18-19,21-25,28H,6-8,10-17H2,1-5H3/t19-,21+,22+,23-,24+,25+,26+,27-/m1/s1",
+            "HVYWMOMLDIMFJA-DPAQBDIFSA-N" },
+    };
+
+    @Test
+    public void testReferenceKeys() {
+        for (String[] pair : REFERENCE) {
+            assertEquals(pair[0], pair[1], InChIKeyCalculator.getInchiKey(pair[0]));
+        }
+    }
+
+    @Test
+    public void testCharSequence() {
+        StringBuilder inchi = new StringBuilder("InChI=1S/CH4/h1H4");
+        assertEquals("VNWKTOKETHGBQD-UHFFFAOYSA-N", InChIKeyCalculator.getInchiKey(inchi));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotAnInchi() {
+        InChIKeyCalculator.getInchiKey("CH4");
+    }
+
+}